@@ -0,0 +1,411 @@
+import java.lang.management.*;
+import java.util.*;
+
+
+/**
+ * Measures how fast each engine steps, for catching performance
+ * regressions and for comparing engines.
+ *
+ *     java Benchmarks [--engines panel,kernel,...] [--sizes 15,64,...]
+ *                     [--patterns rpentomino,acorn,...] [--threads t]
+ *                     [--warmup ms] [--time ms]
+ *
+ * Every combination of engine, board size and starting pattern is
+ * stepped for a warmup period, so the JIT has compiled the hot
+ * loops, and then timed for a measurement period.  For each one
+ * the generations/sec, cells/sec (board cells updated per second)
+ * and bytes allocated per generation are printed.  A fresh engine
+ * is built for each combination, and the same random seed is used
+ * for the soups every time, so runs can be compared.
+ *
+ * The "hashlife" and "sparse" engines run on the unbounded plane
+ * instead of the torus, so their results for patterns that reach
+ * the edge of the board are not the same, but the speeds are still
+ * comparable.  Allocation is only counted on the benchmark thread,
+ * not on the pool threads of "kernel-mt".
+ *
+ * "kernel" and "kernel-mt" use whichever stepper DenseKernel picks
+ * at startup.  "kernel-scalar", "kernel-table" and "kernel-vector"
+ * are the kernel on one thread with each stepper, to compare them;
+ * the vector one needs the JVM started with --add-modules
+ * jdk.incubator.vector.
+ *
+ * "offheap" is OffHeapWorld in a direct buffer, which only takes
+ * sizes that are a multiple of 64.
+ */
+
+public class Benchmarks {
+
+    public static final String PANEL = "panel";
+    public static final String KERNEL = "kernel";
+    public static final String KERNEL_MT = "kernel-mt";
+    public static final String KERNEL_SCALAR = "kernel-scalar";
+    public static final String KERNEL_VECTOR = "kernel-vector";
+    public static final String KERNEL_TABLE = "kernel-table";
+    public static final String WORLD = "world";
+    public static final String HASHLIFE = "hashlife";
+    public static final String SPARSE = "sparse";
+    public static final String OFFHEAP = "offheap";
+
+    private static final String[] ENGINES = {
+        PANEL, KERNEL, KERNEL_MT, KERNEL_SCALAR, KERNEL_VECTOR, KERNEL_TABLE, WORLD, HASHLIFE, SPARSE, OFFHEAP
+    };
+
+    private static final String[] PATTERNS = {
+        "rpentomino", "acorn", "gosper", "soup10", "soup25", "soup50"
+    };
+
+    private static final int[] SIZES = { 15, 64, 256, 1024, 4096, 16384 };
+
+    // MainPanel creates a JButton per cell, so it is only
+    // measured on boards small enough to be usable
+    private static final int MAX_PANEL_SIZE = 256;
+
+    // Soups on bigger boards than this have millions of live
+    // cells, which the engines made for sparse patterns are
+    // not meant for
+    private static final int MAX_SPARSE_SOUP_SIZE = 1024;
+
+    private static final long SEED = 1632;
+
+    private static final String[] R_PENTOMINO = {
+        ".XX",
+        "XX.",
+        ".X."
+    };
+
+    private static final String[] ACORN = {
+        ".X.....",
+        "...X...",
+        "XX..XXX"
+    };
+
+    private static final String[] GOSPER_GUN = {
+        "........................X...........",
+        "......................X.X...........",
+        "............XX......XX............XX",
+        "...........X...X....XX............XX",
+        "XX........X.....X...XX..............",
+        "XX........X...X.XX....X.X...........",
+        "..........X.....X.......X...........",
+        "...........X...X....................",
+        "............XX......................"
+    };
+
+    /**
+     * Something that can be stepped.  Each engine is
+     * wrapped in one of these so they can all be timed
+     * by the same loop.
+     */
+
+    interface Subject {
+
+        public void setAlive(int row, int col);
+
+        public void step();
+
+    }
+
+    private static void showErrorMessage() {
+        System.out.println("Usage: java Benchmarks [--engines e1,e2,...] [--sizes s1,s2,...]");
+        System.out.println("                       [--patterns p1,p2,...] [--threads t]");
+        System.out.println("                       [--warmup ms] [--time ms]");
+        System.out.println("Engines: " + String.join(",", ENGINES));
+        System.out.println("Patterns: " + String.join(",", PATTERNS));
+        System.exit(1);
+    }
+
+    public static void main(String[] args) {
+        String[] engines = ENGINES;
+        String[] patterns = PATTERNS;
+        int[] sizes = SIZES;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long warmup = 500;
+        long time = 1000;
+
+        try {
+            for (int j = 0; j < args.length; j++) {
+                String arg = args[j];
+                if (arg.equals("--engines")) {
+                    engines = args[++j].split(",");
+                } else if (arg.equals("--patterns")) {
+                    patterns = args[++j].split(",");
+                } else if (arg.equals("--sizes")) {
+                    String[] s = args[++j].split(",");
+                    sizes = new int[s.length];
+                    for (int k = 0; k < s.length; k++) {
+                        sizes[k] = Integer.parseInt(s[k]);
+                    }
+                } else if (arg.equals("--threads")) {
+                    threads = Integer.parseInt(args[++j]);
+                } else if (arg.equals("--warmup")) {
+                    warmup = Long.parseLong(args[++j]);
+                } else if (arg.equals("--time")) {
+                    time = Long.parseLong(args[++j]);
+                } else {
+                    showErrorMessage();
+                }
+            }
+        } catch (Exception ex) {
+            showErrorMessage();
+        }
+
+        if (threads < 1 || warmup < 0 || time < 1) {
+            showErrorMessage();
+        }
+        for (String e : engines) {
+            if (!Arrays.asList(ENGINES).contains(e)) {
+                showErrorMessage();
+            }
+        }
+        for (String p : patterns) {
+            if (!Arrays.asList(PATTERNS).contains(p)) {
+                showErrorMessage();
+            }
+        }
+        for (int s : sizes) {
+            if (s < 1) {
+                showErrorMessage();
+            }
+        }
+
+        System.out.println(String.format("%-13s %6s %-11s %10s %14s %16s %14s",
+                                         "engine", "size", "pattern", "gens",
+                                         "gens/sec", "cells/sec", "bytes/gen"));
+        for (String engine : engines) {
+            for (int size : sizes) {
+                for (String pattern : patterns) {
+                    String skip = whySkip(engine, size, pattern);
+                    if (skip != null) {
+                        System.out.println(String.format("%-13s %6d %-11s skipped: %s",
+                                                         engine, size, pattern, skip));
+                        continue;
+                    }
+                    Subject subject = create(engine, size, threads);
+                    place(subject, size, pattern);
+                    measure(engine, size, pattern, subject, warmup, time);
+                    subject = null;
+                    System.gc();
+                }
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * The reason a combination cannot be run, or null
+     * if it can.
+     */
+
+    private static String whySkip(String engine, int size, String pattern) {
+        if (engine.equals(KERNEL_VECTOR) && DenseKernel.stepper(DenseKernel.VECTOR) == null) {
+            return "needs --add-modules jdk.incubator.vector and the simd/ classes";
+        }
+        if (engine.equals(OFFHEAP) && size % 64 != 0) {
+            return "size is not a multiple of 64";
+        }
+        if (engine.equals(PANEL) && size > MAX_PANEL_SIZE) {
+            return "more than " + MAX_PANEL_SIZE + " cells per side";
+        }
+        if ((engine.equals(HASHLIFE) || engine.equals(SPARSE))
+            && pattern.startsWith("soup") && size > MAX_SPARSE_SOUP_SIZE) {
+            return "soup too dense for this engine";
+        }
+        String[] picture = pictureOf(pattern);
+        if (picture != null && (picture.length > size || picture[0].length() > size)) {
+            return "pattern does not fit";
+        }
+        long needed = bytesNeeded(engine, size);
+        if (needed > Runtime.getRuntime().maxMemory() / 2) {
+            return "needs about " + (needed >> 20) + " MB, use a bigger -Xmx";
+        }
+        return null;
+    }
+
+    /**
+     * A rough estimate of the memory an empty engine
+     * of the given size takes.
+     */
+
+    private static long bytesNeeded(String engine, int size) {
+        long cells = (long) size * size;
+        if (engine.startsWith(KERNEL)) {
+            return 2 * (long) (size + 2) * (size + 2);
+        } else if (engine.equals(WORLD)) {
+            return cells / 2;
+        } else if (engine.equals(OFFHEAP)) {
+            return cells / 8;
+        } else if (engine.equals(PANEL)) {
+            return cells * 4096;
+        }
+        return 0;
+    }
+
+    private static String[] pictureOf(String pattern) {
+        if (pattern.equals("rpentomino")) {
+            return R_PENTOMINO;
+        } else if (pattern.equals("acorn")) {
+            return ACORN;
+        } else if (pattern.equals("gosper")) {
+            return GOSPER_GUN;
+        }
+        return null;
+    }
+
+    private static Subject create(String engine, int size, int threads) {
+        if (engine.equals(PANEL)) {
+            final MainPanel mp = new MainPanel(size);
+            return new Subject() {
+                public void setAlive(int row, int col) {
+                    mp.toggleCell(row, col);
+                }
+                public void step() {
+                    mp.run();
+                }
+            };
+        } else if (engine.equals(HASHLIFE)) {
+            final HashLife h = new HashLife();
+            return new Subject() {
+                public void setAlive(int row, int col) {
+                    h.setAlive(row, col, true);
+                }
+                public void step() {
+                    h.step();
+                }
+            };
+        } else if (engine.equals(SPARSE)) {
+            final SparseWorld w = new SparseWorld();
+            return new Subject() {
+                public void setAlive(int row, int col) {
+                    w.setAlive(row, col, true);
+                }
+                public void step() {
+                    w.step();
+                }
+            };
+        }
+
+        final LifeEngine e;
+        if (engine.equals(WORLD)) {
+            e = new World(size);
+        } else if (engine.equals(OFFHEAP)) {
+            e = new OffHeapWorld(size);
+        } else if (engine.equals(KERNEL_MT)) {
+            e = new DenseKernel(size, threads);
+        } else if (engine.equals(KERNEL_SCALAR)) {
+            e = new DenseKernel(size, null, DenseKernel.stepper(DenseKernel.SCALAR));
+        } else if (engine.equals(KERNEL_VECTOR)) {
+            e = new DenseKernel(size, null, DenseKernel.stepper(DenseKernel.VECTOR));
+        } else if (engine.equals(KERNEL_TABLE)) {
+            e = new DenseKernel(size, null, DenseKernel.stepper(DenseKernel.TABLE));
+        } else {
+            e = new DenseKernel(size);
+        }
+        return new Subject() {
+            public void setAlive(int row, int col) {
+                e.setAlive(row, col, true);
+            }
+            public void step() {
+                e.step();
+            }
+        };
+    }
+
+    /**
+     * Put the starting pattern in the middle of the board,
+     * or fill the whole board with a random soup.
+     */
+
+    private static void place(Subject subject, int size, String pattern) {
+        String[] picture = pictureOf(pattern);
+        if (picture != null) {
+            int top = (size - picture.length) / 2;
+            int left = (size - picture[0].length()) / 2;
+            for (int j = 0; j < picture.length; j++) {
+                for (int k = 0; k < picture[j].length(); k++) {
+                    if (picture[j].charAt(k) == 'X') {
+                        subject.setAlive(top + j, left + k);
+                    }
+                }
+            }
+            return;
+        }
+
+        double density = Integer.parseInt(pattern.substring("soup".length())) / 100.0;
+        Random random = new Random(SEED);
+        for (int j = 0; j < size; j++) {
+            for (int k = 0; k < size; k++) {
+                if (random.nextDouble() < density) {
+                    subject.setAlive(j, k);
+                }
+            }
+        }
+    }
+
+    /**
+     * Step for the warmup time, then step for the measuring
+     * time and print how it went.
+     */
+
+    private static void measure(String engine, int size, String pattern, Subject subject,
+                                long warmup, long time) {
+        stepFor(subject, warmup * 1000000L);
+
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long generations = stepFor(subject, time * 1000000L);
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        double perSecond = generations / (elapsed / 1e9);
+        String bytes = (allocatedBefore < 0) ? "n/a" : String.format("%.1f", allocated / (double) generations);
+        System.out.println(String.format("%-13s %6d %-11s %10d %14.1f %16.4g %14s",
+                                         engine, size, pattern, generations, perSecond,
+                                         perSecond * size * size, bytes));
+    }
+
+    /**
+     * Step until the given time has passed, at least once,
+     * and return the number of generations.  The clock is
+     * read after batches of steps rather than every step,
+     * so that reading it does not slow down fast engines on
+     * small boards.  Batches stop growing once one takes a
+     * sixteenth of the time, so slow engines do not overrun.
+     */
+
+    private static long stepFor(Subject subject, long nanos) {
+        long start = System.nanoTime();
+        long now = start;
+        long generations = 0;
+        int batch = 1;
+        do {
+            long batchStart = now;
+            for (int i = 0; i < batch; i++) {
+                subject.step();
+            }
+            generations += batch;
+            now = System.nanoTime();
+            if ((now - batchStart) * 16 < nanos && batch < 1024) {
+                batch *= 2;
+            }
+        } while (now - start < nanos);
+        return generations;
+    }
+
+    /**
+     * Bytes allocated by this thread so far, or -1 if
+     * the JVM cannot tell.
+     */
+
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+            if (sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled()) {
+                return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+}
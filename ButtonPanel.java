@@ -13,6 +13,8 @@ public class ButtonPanel extends JPanel {
 
     private UndoButton _undo;
 
+    private RedoButton _redo;
+
     private LoadButton _load;
 
     private ClearButton _clear;
@@ -34,6 +36,7 @@ public class ButtonPanel extends JPanel {
 	_stop = new StopButton(m);
 	_write = new WriteButton(m);
 	_undo = new UndoButton(m);
+	_redo = new RedoButton(m);
 	_load = new LoadButton(m);
 	_clear = new ClearButton(m);
 	setLayout(new FlowLayout());
@@ -45,6 +48,7 @@ public class ButtonPanel extends JPanel {
 	add(_stop);
 	add(_write);
 	add(_undo);
+	add(_redo);
 	add(_load);
 	add(_clear);
     }
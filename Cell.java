@@ -22,6 +22,20 @@ public class Cell extends JButton {
         setAlive(alive);
     }
 
+    /**
+     * Create a dead cell whose clicks are handled by the
+     * given listener instead of the cell toggling itself.
+     * MainPanel uses this so that it knows about every
+     * click, even while a run is in progress.
+     */
+
+    public Cell(ActionListener clickListener) {
+        super(" ");
+        setFont(new Font("Courier", Font.PLAIN, 12));
+        addActionListener(clickListener);
+        setAlive(false);
+    }
+
     public void resetBeenAlive() {
         _beenAlive = false;
     }
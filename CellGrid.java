@@ -0,0 +1,12 @@
+/**
+ * A read-only view of a square grid of cells.  Rows and
+ * columns are numbered the same way as MainPanel's cells.
+ */
+
+public interface CellGrid {
+
+    public int getSize();
+
+    public boolean getAlive(int row, int col);
+
+}
@@ -0,0 +1,75 @@
+import java.util.*;
+
+
+/**
+ * The cells that were born and the cells that died between two
+ * generations.  Cells are given by index, row * size + column.
+ * The arrays grow as needed and are kept between uses, so
+ * filling the same ChangeSet over and over does not allocate.
+ */
+
+public class ChangeSet {
+
+    private int[] _births = new int[64];
+    private int _birthCount = 0;
+
+    private int[] _deaths = new int[64];
+    private int _deathCount = 0;
+
+    public void clear() {
+        _birthCount = 0;
+        _deathCount = 0;
+    }
+
+    public void addBirth(int index) {
+        if (_birthCount == _births.length) {
+            _births = Arrays.copyOf(_births, _births.length * 2);
+        }
+        _births[_birthCount++] = index;
+    }
+
+    public void addDeath(int index) {
+        if (_deathCount == _deaths.length) {
+            _deaths = Arrays.copyOf(_deaths, _deaths.length * 2);
+        }
+        _deaths[_deathCount++] = index;
+    }
+
+    public int getBirthCount() {
+        return _birthCount;
+    }
+
+    public int getBirth(int i) {
+        return _births[i];
+    }
+
+    public int getDeathCount() {
+        return _deathCount;
+    }
+
+    public int getDeath(int i) {
+        return _deaths[i];
+    }
+
+    /**
+     * A copy of the births, exactly as long as the number
+     * of births.
+     */
+
+    public int[] copyBirths() {
+        return Arrays.copyOf(_births, _birthCount);
+    }
+
+    public int[] copyDeaths() {
+        return Arrays.copyOf(_deaths, _deathCount);
+    }
+
+    /**
+     * The total number of cells that changed.
+     */
+
+    public int size() {
+        return _birthCount + _deathCount;
+    }
+
+}
@@ -0,0 +1,246 @@
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * Saves checkpoints of a continuous run now and then, so a long run
+ * is not lost if the program crashes or is killed.
+ *
+ * The simulation thread calls offer() after every generation.  Once
+ * enough generations or enough time have passed, the board is packed
+ * into a GenerationSnapshot and handed to the FileTask I/O thread,
+ * which writes it as a deflated binary snapshot named after the
+ * board's size, the time it was taken and its generation, e.g.
+ * "checkpoint-100-001729283746123-12000.snapz".  The write is a
+ * safe save, so a checkpoint is either all there or not there at
+ * all.  Only the newest few of each size are kept.  Newest means
+ * taken last, not the highest generation, since undo can take a
+ * board back to earlier generations.
+ *
+ * The simulation thread never waits for the disk.  If the previous
+ * checkpoint is still being written when the next one is due, the
+ * next one is skipped rather than queued.
+ *
+ * Checkpoints are turned on by giving a directory for them with
+ * -Dgameoflife.checkpoints=<dir>, and tuned with
+ * -Dgameoflife.checkpoint.generations=<n>,
+ * -Dgameoflife.checkpoint.seconds=<t> and
+ * -Dgameoflife.checkpoint.keep=<k>.
+ */
+
+public class Checkpointer {
+
+    // Generations between checkpoints by default
+    public static final long DEFAULT_GENERATIONS = 10000;
+
+    // Seconds between checkpoints by default
+    public static final long DEFAULT_SECONDS = 60;
+
+    // Checkpoints kept by default
+    public static final int DEFAULT_KEEP = 3;
+
+    private static final String PREFIX = "checkpoint-";
+    private static final String SUFFIX = ".snapz";
+
+    private File _dir;
+    private long _everyGenerations = 0;
+    private long _everyNanos = 0;
+    private int _keep = 0;
+
+    // When the last checkpoint was taken
+    private long _lastGeneration = 0;
+    private long _lastNanos = 0;
+
+    // The time stamp in the last checkpoint's name, in ms.
+    // Each one is later than the last, even within a ms.
+    private long _lastStamp = 0;
+
+    // The checkpoint being written, or null
+    private FileTask<Void> _pending;
+
+    /**
+     * Checkpoint into the given directory at least every
+     * so many generations and every so many seconds (0 for
+     * never), keeping the newest few.
+     */
+
+    public Checkpointer(File dir, long everyGenerations, long everySeconds, int keep) {
+        if (everyGenerations < 0 || everySeconds < 0 || keep < 1) {
+            throw new IllegalArgumentException("Intervals must not be negative, and at least one checkpoint must be kept");
+        }
+        _dir = dir;
+        _everyGenerations = everyGenerations;
+        _everyNanos = everySeconds * 1000000000L;
+        _keep = keep;
+    }
+
+    /**
+     * The checkpointer the system properties ask for, or
+     * null if checkpoints are not turned on.
+     */
+
+    public static Checkpointer fromProperties() {
+        String dir = System.getProperty("gameoflife.checkpoints");
+        if (dir == null) {
+            return null;
+        }
+        return new Checkpointer(new File(dir),
+                                Long.getLong("gameoflife.checkpoint.generations", DEFAULT_GENERATIONS),
+                                Long.getLong("gameoflife.checkpoint.seconds", DEFAULT_SECONDS),
+                                Integer.getInteger("gameoflife.checkpoint.keep", DEFAULT_KEEP));
+    }
+
+    public File getDirectory() {
+        return _dir;
+    }
+
+    /**
+     * Start counting towards the next checkpoint from the
+     * given generation, at the start of a run.
+     */
+
+    public void reset(long generation) {
+        _lastGeneration = generation;
+        _lastNanos = System.nanoTime();
+    }
+
+    /**
+     * Take a checkpoint of the board if one is due, and
+     * return whether one was taken.  Only the snapshot is
+     * made on the calling thread; it is written on the I/O
+     * thread.
+     */
+
+    public boolean offer(CellGrid grid, long generation) {
+        boolean due = (_everyGenerations > 0 && generation - _lastGeneration >= _everyGenerations)
+            || (_everyNanos > 0 && System.nanoTime() - _lastNanos >= _everyNanos);
+        if (!due || (_pending != null && !_pending.getFuture().isDone())) {
+            return false;
+        }
+        reset(generation);
+        _lastStamp = Math.max(System.currentTimeMillis(), _lastStamp + 1);
+        final GenerationSnapshot snapshot = new GenerationSnapshot(grid, generation);
+        final long stamp = _lastStamp;
+        _pending = FileTask.start(new FileTask.Job<Void>() {
+                public Void run(Progress progress) throws IOException {
+                    write(snapshot, stamp, progress);
+                    return null;
+                }
+            });
+        return true;
+    }
+
+    /**
+     * The checkpoint being written, or the last one if it
+     * is done, or null if none has been taken.
+     */
+
+    public FileTask<Void> getPending() {
+        return _pending;
+    }
+
+    private void write(GenerationSnapshot snapshot, long stamp, Progress progress) {
+        int size = snapshot.getSize();
+        File file = new File(_dir, String.format("%s%d-%015d-%d%s", PREFIX, size, stamp,
+                                                 snapshot.getGeneration(), SUFFIX));
+        try {
+            if (!_dir.isDirectory() && !_dir.mkdirs()) {
+                throw new IOException("Could not create " + _dir);
+            }
+            FileAccess.safeSave(file.getPath(), snapshot, progress);
+        } catch (IOException ex) {
+            System.err.println("Could not write checkpoint " + file + ": " + ex.getMessage());
+            return;
+        }
+        List<File> files = list(size);
+        for (int i = _keep; i < files.size(); i++) {
+            files.get(i).delete();
+        }
+    }
+
+    /**
+     * The checkpoints in the directory, of any size, newest
+     * first.
+     */
+
+    public List<File> list() {
+        return list(-1);
+    }
+
+    /**
+     * The checkpoints of the given size (or any size, if it
+     * is -1) in the directory, newest first.
+     */
+
+    public List<File> list(int size) {
+        List<File> files = new ArrayList<File>();
+        File[] all = _dir.listFiles();
+        if (all != null) {
+            for (File f : all) {
+                long[] fields = fieldsOf(f);
+                if (fields != null && (size < 0 || fields[0] == size)) {
+                    files.add(f);
+                }
+            }
+        }
+        Collections.sort(files, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    return Long.compare(fieldsOf(b)[1], fieldsOf(a)[1]);
+                }
+            });
+        return files;
+    }
+
+    /**
+     * The size, time stamp and generation in a checkpoint's
+     * name, or null if it is not the name of a checkpoint.
+     */
+
+    private static long[] fieldsOf(File f) {
+        String name = f.getName();
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+            return null;
+        }
+        String[] parts = name.substring(PREFIX.length(), name.length() - SUFFIX.length()).split("-");
+        if (parts.length != 3) {
+            return null;
+        }
+        long[] fields = new long[3];
+        try {
+            for (int i = 0; i < 3; i++) {
+                fields[i] = Long.parseLong(parts[i]);
+            }
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        return fields;
+    }
+
+    /**
+     * The newest checkpoint of the given size that reads
+     * back without errors, or null if there is none.  A
+     * damaged checkpoint (say, from a disk that lost data
+     * in a crash) is passed over for the one before it.
+     */
+
+    public GenerationSnapshot latest(int size) {
+        for (File f : list(size)) {
+            try {
+                GenerationSnapshot snapshot = SnapshotCodec.read(f.getPath());
+                if (snapshot.getSize() == size) {
+                    return snapshot;
+                }
+            } catch (IOException ex) {
+                System.err.println("Skipping checkpoint " + f + ": " + ex.getMessage());
+            } catch (RuntimeException ex) {
+                // Whatever else a damaged file makes go wrong,
+                // it must not stop the program starting
+                System.err.println("Skipping checkpoint " + f + ": " + ex);
+            } catch (OutOfMemoryError ex) {
+                System.err.println("Skipping checkpoint " + f + ": too big to load");
+            }
+        }
+        return null;
+    }
+
+}
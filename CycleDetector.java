@@ -0,0 +1,141 @@
+/**
+ * Notices when a run has settled into a cycle: an empty board or a
+ * still life (period 1), a blinker (period 2), and so on.
+ *
+ * Each cell has a fixed random 64-bit key, and the hash of a board
+ * is the XOR of the keys of its live cells (Zobrist hashing).  A
+ * cell being born or dying flips its key in or out, so the hash is
+ * kept up to date from each generation's ChangeSet without looking
+ * at the rest of the board.  The keys are computed from the cell's
+ * index with a mixing function rather than stored, so big boards do
+ * not need a table of them.
+ *
+ * The hashes of the last few generations are kept in a ring.  If
+ * the new hash matches the one p generations back, the board is
+ * taken to have entered a cycle of period p.  Two different boards
+ * have the same 64-bit hash with negligible probability.
+ */
+
+public class CycleDetector {
+
+    // Longest period looked for by default
+    public static final int DEFAULT_HISTORY = 64;
+
+    // Hashes of the most recent generations, newest at _head
+    private long[] _hashes;
+    private int _head = 0;
+    private int _count = 0;
+
+    private long _hash = 0;
+
+    // Period of the cycle found, or 0 if there is none yet
+    private int _period = 0;
+
+    // First generation of the cycle found
+    private long _cycleStart = -1;
+
+    public CycleDetector(int history) {
+        if (history < 1) {
+            throw new IllegalArgumentException("History must be a positive integer");
+        }
+        _hashes = new long[history];
+    }
+
+    /**
+     * The key of the cell with the given index (row * size
+     * + column), from the splitmix64 finalizer.
+     */
+
+    public static long key(int index) {
+        long z = (index + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Start over from the given board, which is at the given
+     * generation.  This has to be called whenever the board is
+     * changed other than by stepping, since that breaks the
+     * chain of generations.
+     */
+
+    public void reset(CellGrid grid, long generation) {
+        int size = grid.getSize();
+        long hash = 0;
+        for (int j = 0; j < size; j++) {
+            for (int k = 0; k < size; k++) {
+                if (grid.getAlive(j, k)) {
+                    hash ^= key(j * size + k);
+                }
+            }
+        }
+        _hash = hash;
+        _period = 0;
+        _cycleStart = -1;
+        _head = 0;
+        _count = 1;
+        _hashes[0] = hash;
+    }
+
+    /**
+     * Account for one step, which changed the given cells and
+     * led to the given generation.  Returns true if this is the
+     * step at which a cycle was first found.
+     */
+
+    public boolean update(ChangeSet changes, long generation) {
+        long hash = _hash;
+        for (int i = 0; i < changes.getBirthCount(); i++) {
+            hash ^= key(changes.getBirth(i));
+        }
+        for (int i = 0; i < changes.getDeathCount(); i++) {
+            hash ^= key(changes.getDeath(i));
+        }
+        _hash = hash;
+
+        boolean found = false;
+        if (_period == 0) {
+            // Look back one generation, then two, and so on,
+            // so the shortest period is the one found
+            int i = _head;
+            for (int p = 1; p <= _count; p++) {
+                if (_hashes[i] == hash) {
+                    _period = p;
+                    _cycleStart = generation - p;
+                    found = true;
+                    break;
+                }
+                i = (i == 0) ? _hashes.length - 1 : i - 1;
+            }
+        }
+
+        _head = (_head + 1) % _hashes.length;
+        _hashes[_head] = hash;
+        _count = Math.min(_count + 1, _hashes.length);
+        return found;
+    }
+
+    public long getHash() {
+        return _hash;
+    }
+
+    /**
+     * The period of the cycle the board is in, or 0 if it
+     * has not been found to be in one.
+     */
+
+    public int getPeriod() {
+        return _period;
+    }
+
+    /**
+     * The first generation that is part of the cycle, or -1
+     * if there is none.
+     */
+
+    public long getCycleStart() {
+        return _cycleStart;
+    }
+
+}
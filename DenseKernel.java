@@ -0,0 +1,529 @@
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * A byte-per-cell stepping kernel for the torus.
+ *
+ * The grid is stored with one extra row above and below it and
+ * one extra column on each side (the "halo").  Before each step
+ * the halo is filled with copies of the cells on the opposite
+ * edge, so the inner loop can read all eight neighbors without
+ * any wrapping arithmetic.  Two buffers are allocated up front
+ * and swapped after every step, so stepping never allocates.
+ *
+ * The grid is also divided into square tiles.  A tile is only
+ * recomputed if it, or one of the eight tiles around it, changed
+ * in the last generation.  Every other tile is asleep: none of
+ * the cells it depends on changed, so it cannot change either,
+ * and the spare buffer already holds the right values for it.
+ * On a board that has settled down, the cost of a step depends
+ * on how much is still moving rather than on the size.
+ *
+ * With more than one thread, each step is split into bands of
+ * tile rows that run on a ForkJoinPool.  A step does not return
+ * until every band is done, so all threads finish one generation
+ * before any of them starts the next.  Each cell is computed
+ * exactly as in the single-threaded case, so the results are
+ * identical.
+ *
+ * The cells of each tile row are computed by a Stepper.  The plain
+ * Java one does a cell at a time.  TableStepper looks up four cells
+ * at a time in a table.  VectorStepper (in simd/, since it needs
+ * the incubating jdk.incubator.vector module to compile and run)
+ * does a whole SIMD register of cells at a time, and is used when
+ * that module is there; otherwise the table one is.
+ * -Dgameoflife.stepper=scalar, =table or =vector picks one at
+ * startup.  They all give the same generations.
+ */
+
+public class DenseKernel implements LifeEngine {
+
+    // Width and height of a tile, in cells
+    public static final int TILE = 16;
+
+    private int _size = 0;
+
+    // Width of a padded row, including both halo columns
+    private int _stride = 0;
+
+    // 1 for alive, 0 for dead, (size + 2) * (size + 2) each
+    private byte[] _current;
+    private byte[] _next;
+
+    // Number of tiles along each side of the grid
+    private int _tiles = 0;
+
+    // Whether each tile changed in the last generation (or
+    // was changed with setAlive() since then)
+    private boolean[] _changed;
+
+    // Whether each tile has to be recomputed this step
+    private boolean[] _awake;
+
+    // Number of tiles recomputed by the last step
+    private int _awakeCount = 0;
+
+    // Pool used to step bands of rows in parallel, or null
+    // to step on the calling thread
+    private ForkJoinPool _pool;
+
+    // Bands with no more tile rows than this are not split
+    private int _bandTiles = 0;
+
+    // Computes the cells of each tile row
+    private Stepper _stepper;
+
+    public static final String SCALAR = "scalar";
+    public static final String VECTOR = "vector";
+    public static final String TABLE = "table";
+
+    // The stepper kernels use unless they are given one
+    private static final Stepper DEFAULT_STEPPER = stepperFromProperties();
+
+    /**
+     * Computes the awake tiles of one tile row of the next
+     * generation.  Implementations must not keep any state
+     * between calls, since tile rows are stepped on several
+     * threads at once.
+     */
+
+    interface Stepper {
+
+        /**
+         * Compute the tiles in tile row tileRow of next from
+         * cur, for a grid of the given size with the halo
+         * already filled in.  Every tile whose awake flag is
+         * set must be computed, and its changed flag set to
+         * whether any of its cells changed.  Tiles that are
+         * asleep may be computed too, since they come out
+         * the same as they are.
+         */
+
+        public void stepTileRow(byte[] cur, byte[] next, int size, int tileRow,
+                                boolean[] awake, boolean[] changed);
+
+        public String getName();
+
+    }
+
+    public DenseKernel(int size) {
+        this(size, 1);
+    }
+
+    public DenseKernel(int size, int threads) {
+        this(size, (threads > 1) ? new ForkJoinPool(threads) : null);
+    }
+
+    /**
+     * Create a kernel that steps on the given pool.  If the
+     * pool is null, stepping happens on the calling thread.
+     */
+
+    public DenseKernel(int size, ForkJoinPool pool) {
+        this(size, pool, DEFAULT_STEPPER);
+    }
+
+    /**
+     * Create a kernel that uses the given stepper.
+     */
+
+    DenseKernel(int size, ForkJoinPool pool, Stepper stepper) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Size must be a positive integer");
+        }
+        _size = size;
+        _stride = size + 2;
+        _current = new byte[_stride * _stride];
+        _next = new byte[_stride * _stride];
+        _tiles = (size + TILE - 1) / TILE;
+        _changed = new boolean[_tiles * _tiles];
+        _awake = new boolean[_tiles * _tiles];
+        wakeAll();
+        _pool = pool;
+        _stepper = stepper;
+        if (pool != null) {
+            // A few bands per thread, so a slow thread
+            // does not hold everybody else up.
+            _bandTiles = Math.max(1, _tiles / (pool.getParallelism() * 4));
+        }
+    }
+
+    /**
+     * The number of threads each step is split across.
+     */
+
+    public int getThreads() {
+        return (_pool == null) ? 1 : _pool.getParallelism();
+    }
+
+    public int getSize() {
+        return _size;
+    }
+
+    /**
+     * The name of the stepper this kernel uses, SCALAR,
+     * TABLE or VECTOR.
+     */
+
+    public String getStepperName() {
+        return _stepper.getName();
+    }
+
+    /**
+     * The stepper with the given name, or null if there is
+     * no such stepper or it cannot run here.  The vector
+     * stepper is loaded by name, so that this class still
+     * compiles and runs without it.
+     */
+
+    static Stepper stepper(String name) {
+        if (SCALAR.equals(name)) {
+            return new ScalarStepper();
+        }
+        if (TABLE.equals(name)) {
+            return new TableStepper();
+        }
+        if (!VECTOR.equals(name) || !ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            return null;
+        }
+        try {
+            return (Stepper) Class.forName("VectorStepper").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        } catch (LinkageError ex) {
+            return null;
+        }
+    }
+
+    /**
+     * The stepper -Dgameoflife.stepper asks for, or the
+     * vector one if that is left out and the vector one can
+     * run here, or else the table one.
+     */
+
+    private static Stepper stepperFromProperties() {
+        String name = System.getProperty("gameoflife.stepper");
+        Stepper stepper = stepper((name == null) ? VECTOR : name);
+        if (stepper == null) {
+            if (name != null) {
+                System.err.println("The " + name + " stepper cannot run here, using the "
+                                   + TABLE + " one. The " + VECTOR + " stepper needs"
+                                   + " --add-modules jdk.incubator.vector and the simd/ classes.");
+            }
+            stepper = new TableStepper();
+        }
+        return stepper;
+    }
+
+    /**
+     * The number of tiles that were recomputed by the
+     * last step, out of getTileCount().
+     */
+
+    public int getAwakeTiles() {
+        return _awakeCount;
+    }
+
+    public int getTileCount() {
+        return _tiles * _tiles;
+    }
+
+    private int index(int row, int col) {
+        return (row + 1) * _stride + (col + 1);
+    }
+
+    public boolean getAlive(int row, int col) {
+        return _current[index(row, col)] != 0;
+    }
+
+    public void setAlive(int row, int col, boolean alive) {
+        int i = index(row, col);
+        byte b = (byte) (alive ? 1 : 0);
+        if (_current[i] != b) {
+            _current[i] = b;
+            _changed[(row / TILE) * _tiles + (col / TILE)] = true;
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(_current, (byte) 0);
+        wakeAll();
+    }
+
+    /**
+     * Mark every tile as changed, so the next step
+     * recomputes the whole grid.
+     */
+
+    private void wakeAll() {
+        Arrays.fill(_changed, true);
+    }
+
+    /**
+     * Copy the edges of the grid into the halo on the
+     * opposite side.  Rows are done first, so that when
+     * the columns are copied the corners come along too.
+     */
+
+    private void fillHalo(byte[] cells) {
+        int size = _size;
+        int stride = _stride;
+
+        System.arraycopy(cells, size * stride, cells, 0, stride);
+        System.arraycopy(cells, stride, cells, (size + 1) * stride, stride);
+
+        for (int j = 0; j < stride; j++) {
+            int row = j * stride;
+            cells[row] = cells[row + size];
+            cells[row + size + 1] = cells[row + 1];
+        }
+    }
+
+    /**
+     * Work out which tiles need to be recomputed: the ones
+     * that changed, and their neighbors (wrapping around
+     * the torus).  The changed flags are then cleared, to
+     * be filled in again by this step.
+     */
+
+    private void findAwakeTiles() {
+        int tiles = _tiles;
+        int count = 0;
+
+        for (int j = 0; j < tiles; j++) {
+            int up = ((j == 0) ? tiles - 1 : j - 1) * tiles;
+            int mid = j * tiles;
+            int down = ((j == tiles - 1) ? 0 : j + 1) * tiles;
+            for (int k = 0; k < tiles; k++) {
+                int left = (k == 0) ? tiles - 1 : k - 1;
+                int right = (k == tiles - 1) ? 0 : k + 1;
+                boolean awake = _changed[up + left] || _changed[up + k] || _changed[up + right]
+                    || _changed[mid + left] || _changed[mid + k] || _changed[mid + right]
+                    || _changed[down + left] || _changed[down + k] || _changed[down + right];
+                _awake[mid + k] = awake;
+                if (awake) {
+                    count++;
+                }
+            }
+        }
+
+        Arrays.fill(_changed, false);
+        _awakeCount = count;
+    }
+
+    /**
+     * Compute the next generation into the spare buffer and
+     * then swap the buffers.
+     */
+
+    public void step() {
+        findAwakeTiles();
+        if (_awakeCount > 0) {
+            fillHalo(_current);
+            if (_pool == null || _tiles <= _bandTiles) {
+                stepTileRows(_current, _next, 0, _tiles);
+            } else {
+                _pool.invoke(new BandTask(_current, _next, 0, _tiles));
+            }
+        }
+
+        byte[] tmp = _current;
+        _current = _next;
+        _next = tmp;
+    }
+
+    /**
+     * Compute the awake tiles in tile rows [from, to) of the
+     * next generation.  The halo of cur must already be
+     * filled in.
+     */
+
+    private void stepTileRows(byte[] cur, byte[] next, int from, int to) {
+        for (int j = from; j < to; j++) {
+            _stepper.stepTileRow(cur, next, _size, j, _awake, _changed);
+        }
+    }
+
+    /**
+     * Steps the awake tiles a cell at a time.
+     */
+
+    static class ScalarStepper implements Stepper {
+
+        public void stepTileRow(byte[] cur, byte[] next, int size, int tileRow,
+                                boolean[] awake, boolean[] changed) {
+            int tiles = (size + TILE - 1) / TILE;
+            for (int k = 0; k < tiles; k++) {
+                int t = tileRow * tiles + k;
+                if (awake[t]) {
+                    changed[t] = stepTile(cur, next, size, tileRow, k);
+                }
+            }
+        }
+
+        /**
+         * Compute one tile of the next generation, and
+         * return whether any of its cells changed.
+         */
+
+        static boolean stepTile(byte[] cur, byte[] next, int size, int tileRow, int tileCol) {
+            int stride = size + 2;
+            int rowEnd = Math.min((tileRow + 1) * TILE, size);
+            int col = tileCol * TILE;
+            int width = Math.min(TILE, size - col);
+            int diff = 0;
+
+            for (int j = tileRow * TILE; j < rowEnd; j++) {
+                int i = (j + 1) * stride + col + 1;
+                int end = i + width;
+                for (; i < end; i++) {
+                    int numNeighbors = cur[i - stride - 1] + cur[i - stride] + cur[i - stride + 1]
+                        + cur[i - 1] + cur[i + 1]
+                        + cur[i + stride - 1] + cur[i + stride] + cur[i + stride + 1];
+
+                    // A cell is alive next time if it has 3
+                    // neighbors, or if it is alive and has 2.
+                    // Or-ing in the current state turns both
+                    // of those cases into a 3.
+                    byte b = (byte) (((numNeighbors | cur[i]) == 3) ? 1 : 0);
+                    diff |= b ^ cur[i];
+                    next[i] = b;
+                }
+            }
+            return diff != 0;
+        }
+
+        public String getName() {
+            return SCALAR;
+        }
+
+    }
+
+    /**
+     * Fill in the cells that the last step() changed.  Only
+     * the tiles that changed are looked at.  After a step
+     * the spare buffer holds the generation before it, so
+     * the changes are the cells where the buffers differ.
+     * They are compared eight at a time, and the rows are
+     * gone through across the tiles, so the changes come
+     * out in order of their index.
+     */
+
+    public void getChanges(ChangeSet changes) {
+        changes.clear();
+        ByteBuffer cur = ByteBuffer.wrap(_current).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer prev = ByteBuffer.wrap(_next).order(ByteOrder.LITTLE_ENDIAN);
+        for (int tr = 0; tr < _tiles; tr++) {
+            int rowStart = tr * TILE;
+            int rowEnd = Math.min(rowStart + TILE, _size);
+            for (int j = rowStart; j < rowEnd; j++) {
+                int rowIndex = index(j, 0);
+                for (int tc = 0; tc < _tiles; tc++) {
+                    if (!_changed[tr * _tiles + tc]) {
+                        continue;
+                    }
+                    int colStart = tc * TILE;
+                    int colEnd = Math.min(colStart + TILE, _size);
+                    int k = colStart;
+                    for (; k + 8 <= colEnd; k += 8) {
+                        long diff = cur.getLong(rowIndex + k) ^ prev.getLong(rowIndex + k);
+                        while (diff != 0) {
+                            int c = k + (Long.numberOfTrailingZeros(diff) >>> 3);
+                            addChange(changes, j, c, rowIndex);
+                            diff &= ~(0xffL << ((c - k) << 3));
+                        }
+                    }
+                    for (; k < colEnd; k++) {
+                        if (_current[rowIndex + k] != _next[rowIndex + k]) {
+                            addChange(changes, j, k, rowIndex);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void addChange(ChangeSet changes, int row, int col, int rowIndex) {
+        if (_current[rowIndex + col] != 0) {
+            changes.addBirth(row * _size + col);
+        } else {
+            changes.addDeath(row * _size + col);
+        }
+    }
+
+    /**
+     * Pack the current generation one bit per cell into
+     * bits, in GenerationSnapshot's layout.  Eight cells are
+     * read at once as a little-endian long, whose bytes are
+     * all 0 or 1, and one multiply gathers the low bit of
+     * each byte into the top byte.  That is several times
+     * faster than asking for each cell.
+     */
+
+    void pack(long[] bits) {
+        ByteBuffer cur = ByteBuffer.wrap(_current).order(ByteOrder.LITTLE_ENDIAN);
+        long word = 0;
+        int bit = 0;
+        int w = 0;
+        for (int j = 0; j < _size; j++) {
+            int i = index(j, 0);
+            int end = i + _size;
+            for (; i < end; i += 8) {
+                int n = Math.min(8, end - i);
+                long v;
+                if (n == 8) {
+                    v = (cur.getLong(i) * 0x0102040810204080L) >>> 56;
+                } else {
+                    v = 0;
+                    for (int k = 0; k < n; k++) {
+                        v |= (long) _current[i + k] << k;
+                    }
+                }
+                word |= v << bit;
+                bit += n;
+                if (bit >= 64) {
+                    bits[w++] = word;
+                    bit -= 64;
+                    word = (bit > 0) ? v >>> (n - bit) : 0;
+                }
+            }
+        }
+        if (bit > 0) {
+            bits[w] = word;
+        }
+    }
+
+    /**
+     * Steps a band of tile rows, splitting it in half until
+     * the pieces are small enough to run directly.
+     */
+
+    class BandTask extends RecursiveAction {
+
+        private byte[] _cur;
+        private byte[] _nxt;
+        private int _from;
+        private int _to;
+
+        public BandTask(byte[] cur, byte[] next, int from, int to) {
+            _cur = cur;
+            _nxt = next;
+            _from = from;
+            _to = to;
+        }
+
+        protected void compute() {
+            if (_to - _from <= _bandTiles) {
+                stepTileRows(_cur, _nxt, _from, _to);
+            } else {
+                int mid = (_from + _to) >>> 1;
+                invokeAll(new BandTask(_cur, _nxt, _from, mid),
+                          new BandTask(_cur, _nxt, mid, _to));
+            }
+        }
+
+    }
+
+}
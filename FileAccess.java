@@ -1,9 +1,39 @@
 import java.util.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
 import java.nio.file.*;
 
 public class FileAccess {
 
+    /**
+     * The file the Write, SafeSave and Load buttons use,
+     * "backup.txt" unless -Dgameoflife.file=<name> is given.
+     */
+
+    public static final String DEFAULT_FILE = System.getProperty("gameoflife.file", "backup.txt");
+
+    /**
+     * Whether a file is saved and loaded in the RLE format
+     * rather than as X/. rows: if its name ends in ".rle".
+     */
+
+    public static boolean isRle(String fileName) {
+	return fileName.toLowerCase().endsWith(".rle");
+    }
+
+    /**
+     * Whether a file is saved and loaded as a binary
+     * snapshot (see SnapshotCodec): if its name ends in
+     * ".snap", or ".snapz" for a deflated one.
+     */
+
+    public static boolean isSnapshot(String fileName) {
+	String name = fileName.toLowerCase();
+	return name.endsWith(".snap") || name.endsWith(".snapz");
+    }
+
     /**
      * Standard "save".  Write the string to the file.
      */
@@ -20,78 +50,265 @@ public class FileAccess {
     }
 
     /**
-     * "Safe save".  Write the string to a backup file,
-     * then copy it over the last saved file, and 
-     * if everything is OK, delete the originally 
-     * written file.
+     * Write a grid as rows of 'X' (alive) and '.' (dead),
+     * one line per row.  Each row is filled into one char
+     * buffer and handed straight to the Writer, so no
+     * String holding the whole grid is ever built.
      */
-    
-    public static boolean safeSaveFile(String fileToWrite, String backupFile, String m) {
 
-	// If there is any error, return false to
-	// let the user know.
-	
-	try {
+    public static void writeGrid(CellGrid grid, Writer out) throws IOException {
+	writeGrid(grid, out, null);
+    }
 
-	    // Unlike the assignment, there is no
-	    // need to read anything in from the
-	    // original file.  Let's write directly
-	    // to the backup file.  However, for
-	    // you could start by reading the
-	    // previous data.
+    /**
+     * Write a grid as rows, counting them on the given
+     * Progress (if it is not null).
+     */
 
-	    // Write directly to the BACKUP file first.
-	    
-	    PrintWriter out = new PrintWriter(backupFile);
-	    out.println(m);
-	    out.close();
+    public static void writeGrid(CellGrid grid, Writer out, Progress progress) throws IOException {
+	int size = grid.getSize();
+	char[] row = new char[size + 1];
+	row[size] = '\n';
+	if (progress != null) {
+	    progress.start(size);
+	}
+	for (int j = 0; j < size; j++) {
+	    if (progress != null) {
+		progress.advance(1);
+	    }
+	    for (int k = 0; k < size; k++) {
+		row[k] = grid.getAlive(j, k) ? 'X' : '.';
+	    }
+	    out.write(row);
+	}
+    }
+
+    /**
+     * Write a grid to a file that is open for writing,
+     * as RLE if isRle() says the name is for RLE, or as a
+     * binary snapshot if isSnapshot() does.  A snapshot
+     * gets the generation of a GenerationSnapshot or an
+     * OffHeapWorld; any other grid is saved as generation
+     * 0, so wrap it in a GenerationSnapshot to keep its
+     * generation.  Otherwise the file ends with an empty
+     * line, exactly like saving the grid's String with
+     * saveFile().  The channel is left
+     * open, with everything handed to the operating system.
+     */
 
-	    // The file is now closed.  We now
-	    // have a "backup copy", but our original
-	    // saved file is still safe.  Any error
-	    // before this point is going to throw
-	    // an exception and our original file
-	    // is still safe.
-
-	    // Now let's copy over the "backup copy"
-	    // to replace the old saved file.
-	    
-	    File a = new File(fileToWrite);
-	    File b = new File(backupFile);
-	    Files.copy(b.toPath(), a.toPath(), StandardCopyOption.REPLACE_EXISTING);
-
-	    // So now we have two copies of the
-	    // new file - the new one we just wrote
-	    // in backupCopy, and the copy we just
-	    // copied over the old saved copy.
-	    // But we don't need two copies, so
-	    // delete the original one we put
-	    // in backupCopy.
-
-	    Files.delete(b.toPath());
-	    
-	    // If we got here, no problems!
-	    // We now have one saved file,
-	    // and if any problems occurred,
-	    // we wouldn't have gotten here.
-	    // So just return true (== success).
-	    
+    private static void writeGridFile(FileChannel channel, String fileName, CellGrid grid,
+				      Progress progress) throws IOException {
+	if (isSnapshot(fileName) && grid instanceof OffHeapWorld) {
+	    // Straight from its memory, with no copy on the heap
+	    ((OffHeapWorld) grid).save(channel, fileName.toLowerCase().endsWith(".snapz"), progress);
+	    return;
+	}
+	if (isSnapshot(fileName)) {
+	    GenerationSnapshot snapshot = (grid instanceof GenerationSnapshot)
+		? (GenerationSnapshot) grid : new GenerationSnapshot(grid, 0);
+	    SnapshotCodec.write(snapshot, channel, fileName.toLowerCase().endsWith(".snapz"), progress);
+	    return;
+	}
+	Writer out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel),
+							       StandardCharsets.US_ASCII), 1 << 16);
+	if (isRle(fileName)) {
+	    RleCodec.write(grid, out, progress);
+	} else {
+	    writeGrid(grid, out, progress);
+	    out.write(System.lineSeparator());
+	}
+	out.flush();
+    }
+
+    /**
+     * Streaming "save".  Write the grid to the file
+     * without building a String of it first.
+     */
+
+    public static boolean saveFile(String fileName, CellGrid grid) {
+	try {
+	    save(fileName, grid, null);
 	    return true;
 	} catch (IOException ioex) {
+	    return false;
+	}
+    }
 
-	    // Any error that occurs, return false.
-	    // We'll leave it up to the user to
-	    // double-check the files and see
-	    // what can be salvaged.
+    /**
+     * Streaming "save" that says what went wrong.  Write
+     * the grid to the file, counting the work done on the
+     * given Progress (if it is not null), and throw an
+     * IOException if it could not be written.
+     */
 
-	    // For an industry product, we'd
-	    // probably want to have better
-	    // error messaging.
-	    
-	    return false;
+    public static void save(String fileName, CellGrid grid, Progress progress) throws IOException {
+	FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+					       StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	try {
+	    writeGridFile(channel, fileName, grid, progress);
+	} finally {
+	    channel.close();
 	}
+    }
+
+    /**
+     * Something to be written to a file by replaceFile().
+     */
+
+    interface Contents {
+
+	public void writeTo(FileChannel channel) throws IOException;
+
+    }
+
+    /**
+     * Replace a file, so that after a crash it is either
+     * all the old file or all the new one.  The contents
+     * are written to a temporary file in the same directory,
+     * which is forced to disk and then atomically renamed
+     * over the file.  The data is only written once, and the
+     * old file is never half overwritten.  On any error the
+     * temporary file is removed, the old file is left as it
+     * was, and an IOException saying which step failed is
+     * thrown.
+     */
+
+    static void replaceFile(String fileName, Contents contents) throws IOException {
+	replaceFile(fileName, contents, true);
+    }
+
+    /**
+     * Replace a file as replaceFile() does, but only force
+     * it to disk if durable is true.  Without forcing, a
+     * crash can still lose the new file, but a failed or
+     * cancelled write never leaves half of one behind.
+     */
+
+    static void replaceFile(String fileName, Contents contents, boolean durable) throws IOException {
+	Path target = Paths.get(fileName).toAbsolutePath();
+	Path dir = target.getParent();
+	// Not Files.createTempFile(), which would give the new
+	// file owner-only permissions instead of the usual ones
+	Path temp = dir.resolve("." + target.getFileName() + "."
+				+ Long.toHexString(new Random().nextLong()) + ".tmp");
+	FileChannel channel;
+	try {
+	    channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+	} catch (IOException ex) {
+	    throw new IOException("Could not create a temporary file in " + dir + ": " + ex.getMessage(), ex);
+	}
+
+	boolean moved = false;
+	try {
+	    try {
+		contents.writeTo(channel);
+		if (durable) {
+		    channel.force(true);
+		}
+	    } catch (InterruptedIOException ex) {
+		// Cancelled, which is not a failure to report
+		throw ex;
+	    } catch (IOException ex) {
+		throw new IOException("Could not write " + temp + ": " + ex.getMessage(), ex);
+	    } finally {
+		channel.close();
+	    }
 
-	
+	    try {
+		Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+	    } catch (IOException ex) {
+		throw new IOException("Could not replace " + target + ": " + ex.getMessage(), ex);
+	    }
+	    moved = true;
+	} finally {
+	    if (!moved) {
+		Files.deleteIfExists(temp);
+	    }
+	}
+	if (!durable) {
+	    return;
+	}
+
+	// Make the rename itself durable.  Not every platform
+	// lets a directory be opened, and the file is already
+	// safely in place either way.
+	try {
+	    FileChannel d = FileChannel.open(dir, StandardOpenOption.READ);
+	    try {
+		d.force(true);
+	    } finally {
+		d.close();
+	    }
+	} catch (IOException ex) {
+	    // Ignore
+	}
+    }
+
+    /**
+     * Streaming "safe save".  Atomically replace the file
+     * with the grid (see replaceFile()), throwing an
+     * IOException saying what went wrong if it could not.
+     */
+
+    public static void safeSave(String fileName, CellGrid grid) throws IOException {
+	safeSave(fileName, grid, null);
+    }
+
+    /**
+     * Write a grid over a file without ever leaving half of
+     * it there: a failed or cancelled write (through the
+     * given Progress, if it is not null) leaves the old
+     * file as it was.  Unlike safeSave() nothing is forced
+     * to disk, so it costs about as much as save().
+     */
+
+    public static void replace(final String fileName, final CellGrid grid,
+			       final Progress progress) throws IOException {
+	replaceFile(fileName, new Contents() {
+		public void writeTo(FileChannel channel) throws IOException {
+		    writeGridFile(channel, fileName, grid, progress);
+		}
+	    }, false);
+    }
+
+    /**
+     * Streaming "safe save", counting the work done on the
+     * given Progress (if it is not null).  Cancelling it
+     * leaves the old file as it was.
+     */
+
+    public static void safeSave(final String fileName, final CellGrid grid,
+				final Progress progress) throws IOException {
+	replaceFile(fileName, new Contents() {
+		public void writeTo(FileChannel channel) throws IOException {
+		    writeGridFile(channel, fileName, grid, progress);
+		}
+	    });
+    }
+
+    /**
+     * "Safe save".  Atomically replace the file with the
+     * string (see replaceFile()).  The backup file is no
+     * longer used: the temporary file is always made next
+     * to the file to write, since a rename can only be
+     * atomic within one file system.  Returns false on any
+     * error, leaving the old file as it was.
+     */
+    
+    public static boolean safeSaveFile(String fileToWrite, String backupFile, final String m) {
+	try {
+	    replaceFile(fileToWrite, new Contents() {
+		    public void writeTo(FileChannel channel) throws IOException {
+			Writer out = new OutputStreamWriter(Channels.newOutputStream(channel));
+			out.write(m);
+			out.write(System.lineSeparator());
+			out.flush();
+		    }
+		});
+	    return true;
+	} catch (IOException ioex) {
+	    return false;
+	}
     }
 
     /**
@@ -121,5 +338,287 @@ public class FileAccess {
     	return lines;
 
     }
-    
+
+    // Largest piece of a file mapped into memory at once
+    private static final long MAP_WINDOW = 64L << 20;
+
+    /**
+     * Reads a file one byte at a time through a memory
+     * mapped window that slides along it.  Only the window
+     * is mapped, so files bigger than the heap, or than
+     * the 2 GB a single mapping can cover, can be read.
+     */
+
+    static class MappedReader {
+
+	private FileChannel _channel;
+	private long _length;
+	private MappedByteBuffer _buffer;
+	private long _bufferStart = 0;
+	private long _position = 0;
+
+	public MappedReader(FileChannel channel) throws IOException {
+	    _channel = channel;
+	    _length = channel.size();
+	}
+
+	public long getLength() {
+	    return _length;
+	}
+
+	public long getPosition() {
+	    return _position;
+	}
+
+	/**
+	 * Carry on reading from the given offset.
+	 */
+
+	public void seek(long position) {
+	    _position = position;
+	}
+
+	/**
+	 * Map the window holding the current position, if
+	 * it is not mapped already.
+	 */
+
+	private void map() throws IOException {
+	    if (_buffer == null || _position < _bufferStart
+		|| _position - _bufferStart >= _buffer.limit()) {
+		_bufferStart = _position;
+		_buffer = _channel.map(FileChannel.MapMode.READ_ONLY, _position,
+				       Math.min(MAP_WINDOW, _length - _position));
+	    }
+	}
+
+	/**
+	 * The next byte of the file, or -1 at the end.
+	 */
+
+	public int read() throws IOException {
+	    if (_position >= _length) {
+		return -1;
+	    }
+	    map();
+	    return _buffer.get((int) (_position++ - _bufferStart)) & 0xff;
+	}
+
+	/**
+	 * Read exactly len bytes into b, copying them out of
+	 * the mapping in bulk.  Throws an EOFException if the
+	 * file ends first.
+	 */
+
+	public void readFully(byte[] b, int off, int len) throws IOException {
+	    if (_length - _position < len) {
+		throw new EOFException("Unexpected end of " + _length + " byte file");
+	    }
+	    while (len > 0) {
+		map();
+		int start = (int) (_position - _bufferStart);
+		int n = Math.min(len, _buffer.limit() - start);
+		ByteBuffer window = _buffer.duplicate();
+		window.position(start);
+		window.get(b, off, n);
+		_position += n;
+		off += n;
+		len -= n;
+	    }
+	}
+    }
+
+    /**
+     * Go through a file of 'X' and '.' rows, checking that
+     * it is a square grid whose side is size (or any side,
+     * if size is -1), and return the side.  If grid is not
+     * null each cell is put straight into it as it is read:
+     * '.' is dead and anything else is alive, like load().
+     * Blank lines at the end are allowed, and a '\r' before
+     * a newline is ignored.  Each row read is counted on
+     * progress, if it is not null.
+     */
+
+    private static int scanGrid(String fileName, int size, WritableGrid grid,
+				Progress progress) throws IOException {
+	FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+	try {
+	    MappedReader in = new MappedReader(channel);
+	    int row = 0;
+	    int col = 0;
+	    int b;
+	    do {
+		b = in.read();
+		if (b == '\r') {
+		    continue;
+		}
+		if (b == '\n' || b == -1) {
+		    if (size < 0 && row == 0) {
+			size = col;
+		    }
+		    if (row < size) {
+			if (col != size) {
+			    throw new IOException("Row " + (row + 1) + " has " + col
+						  + " cells, expected " + size);
+			}
+			row++;
+			if (progress != null) {
+			    progress.advance(1);
+			}
+		    } else if (col > 0) {
+			throw new IOException("More than " + size + " rows");
+		    }
+		    col = 0;
+		    continue;
+		}
+		if (row < size && col < size && grid != null) {
+		    grid.setAlive(row, col, b != '.');
+		}
+		col++;
+	    } while (b != -1);
+
+	    if (size < 1) {
+		throw new IOException("No rows");
+	    }
+	    if (row < size) {
+		throw new IOException(row + " rows, expected " + size);
+	    }
+	    return size;
+	} finally {
+	    channel.close();
+	}
+    }
+
+    /**
+     * The side of the square grid saved in a file, which
+     * is checked to really be a square grid.
+     */
+
+    public static int measureGrid(String fileName) throws IOException {
+	if (isSnapshot(fileName)) {
+	    return SnapshotCodec.readSize(fileName);
+	}
+	if (isRle(fileName)) {
+	    RleCodec.Pattern pattern = loadRle(fileName);
+	    return Math.max(1, Math.max(pattern.getWidth(), pattern.getHeight()));
+	}
+	return scanGrid(fileName, -1, null, null);
+    }
+
+    /**
+     * Read an RLE file.
+     */
+
+    public static RleCodec.Pattern loadRle(String fileName) throws IOException {
+	return loadRle(fileName, null);
+    }
+
+    /**
+     * Read an RLE file, counting rows on the given
+     * Progress (if it is not null).
+     */
+
+    public static RleCodec.Pattern loadRle(String fileName, Progress progress) throws IOException {
+	Reader in = Files.newBufferedReader(Paths.get(fileName), StandardCharsets.US_ASCII);
+	try {
+	    return RleCodec.read(in, progress);
+	} finally {
+	    in.close();
+	}
+    }
+
+    /**
+     * Load a saved grid straight into an engine, without
+     * making a String for each line.  The file is checked
+     * to be a grid of exactly the engine's size before any
+     * cell is changed, and an IOException saying what is
+     * wrong is thrown if it is not.  An RLE pattern only
+     * has to fit, and goes in the top left corner.  Returns
+     * the generation a snapshot was saved at, or 0 for a
+     * file that does not keep one.
+     */
+
+    public static long loadGrid(String fileName, WritableGrid grid) throws IOException {
+	return loadGrid(fileName, grid, null);
+    }
+
+    /**
+     * Load a saved grid straight into an engine, counting
+     * the work done on the given Progress (if it is not
+     * null).  If it is cancelled before the file has been
+     * checked, the engine is left as it was.
+     */
+
+    public static long loadGrid(String fileName, WritableGrid grid, Progress progress) throws IOException {
+	if (isSnapshot(fileName) && grid instanceof OffHeapWorld) {
+	    ((OffHeapWorld) grid).load(fileName, progress);
+	    return ((OffHeapWorld) grid).getGeneration();
+	}
+	if (isSnapshot(fileName)) {
+	    GenerationSnapshot snapshot = SnapshotCodec.read(fileName, progress);
+	    int size = grid.getSize();
+	    if (snapshot.getSize() != size) {
+		throw new IOException("Snapshot is " + snapshot.getSize() + "x" + snapshot.getSize()
+				      + ", expected " + size + "x" + size);
+	    }
+	    for (int j = 0; j < size; j++) {
+		for (int k = 0; k < size; k++) {
+		    grid.setAlive(j, k, snapshot.getAlive(j, k));
+		}
+	    }
+	    return snapshot.getGeneration();
+	}
+	if (isRle(fileName)) {
+	    RleCodec.Pattern pattern = loadRle(fileName, progress);
+	    if (pattern.getWidth() > grid.getSize() || pattern.getHeight() > grid.getSize()) {
+		throw new IOException("Pattern is " + pattern.getWidth() + "x" + pattern.getHeight()
+				      + ", bigger than the " + grid.getSize() + "x" + grid.getSize() + " grid");
+	    }
+	    pattern.applyTo(grid);
+	    return 0;
+	}
+	if (progress != null) {
+	    progress.start(2L * grid.getSize());
+	}
+	scanGrid(fileName, grid.getSize(), null, progress);
+	scanGrid(fileName, grid.getSize(), grid, progress);
+	return 0;
+    }
+
+    /**
+     * Read a saved grid of the given size into a new
+     * snapshot, checking it the same way as loadGrid().
+     * This touches nothing but the file, so it can be done
+     * on any thread while the board carries on.
+     */
+
+    public static GenerationSnapshot readGrid(String fileName, final int size,
+					      Progress progress) throws IOException {
+	if (isSnapshot(fileName)) {
+	    GenerationSnapshot snapshot = SnapshotCodec.read(fileName, progress);
+	    if (snapshot.getSize() != size) {
+		throw new IOException("Snapshot is " + snapshot.getSize() + "x" + snapshot.getSize()
+				      + ", expected " + size + "x" + size);
+	    }
+	    return snapshot;
+	}
+
+	// Pack the cells as they are read
+	final long[] bits = new long[GenerationSnapshot.wordCount(size)];
+	loadGrid(fileName, new WritableGrid() {
+		public int getSize() {
+		    return size;
+		}
+		public void setAlive(int row, int col, boolean alive) {
+		    long i = (long) row * size + col;
+		    if (alive) {
+			bits[(int) (i >>> 6)] |= 1L << (i & 63);
+		    } else {
+			bits[(int) (i >>> 6)] &= ~(1L << (i & 63));
+		    }
+		}
+	    }, progress);
+	return new GenerationSnapshot(size, 0, bits);
+    }
+
 }
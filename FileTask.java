@@ -0,0 +1,174 @@
+import java.awt.*;
+import java.awt.event.*;
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import javax.swing.*;
+
+
+/**
+ * A save or load running in the background, so the Swing thread
+ * never waits on the disk.
+ *
+ * Every task runs on one shared I/O thread, one after another, so
+ * a save and a later load of the same file happen in the order they
+ * were asked for.  Each has a CompletableFuture for its result and
+ * a Progress that it reports to.  Cancelling a task stops it at its
+ * next piece of work, with the same clean up as an I/O error (a
+ * cancelled save or safe save leaves the old file alone), and
+ * completes the future with a CancellationException straight away.
+ *
+ * Saves work on a GenerationSnapshot.  Those never change once made,
+ * so the board can keep running while one is being written.
+ */
+
+public class FileTask<T> {
+
+    // The one thread all file tasks run on.  It is a
+    // daemon, so it does not stop the program exiting.
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "file-io");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    // How often a ProgressMonitor is updated, in ms
+    private static final int MONITOR_INTERVAL = 100;
+
+    /**
+     * The work a task does.
+     */
+
+    public interface Job<T> {
+
+        public T run(Progress progress) throws IOException;
+
+    }
+
+    private final Progress _progress = new Progress();
+
+    private final CompletableFuture<T> _future = new CompletableFuture<T>();
+
+    private FileTask() {
+    }
+
+    /**
+     * Queue a job on the I/O thread.
+     */
+
+    public static <T> FileTask<T> start(final Job<T> job) {
+        final FileTask<T> task = new FileTask<T>();
+        EXECUTOR.execute(new Runnable() {
+                public void run() {
+                    if (task._future.isDone()) {
+                        // Cancelled before it started
+                        return;
+                    }
+                    try {
+                        task._future.complete(job.run(task._progress));
+                    } catch (Throwable ex) {
+                        task._future.completeExceptionally(ex);
+                    }
+                }
+            });
+        return task;
+    }
+
+    /**
+     * Write a grid to a file in the background.  It goes
+     * through a temporary file (see FileAccess.replace()),
+     * so cancelling it never leaves half a file.
+     */
+
+    public static FileTask<Void> save(final String fileName, final GenerationSnapshot grid) {
+        return start(new Job<Void>() {
+                public Void run(Progress progress) throws IOException {
+                    FileAccess.replace(fileName, grid, progress);
+                    return null;
+                }
+            });
+    }
+
+    /**
+     * Atomically replace a file with a grid in the
+     * background (see FileAccess.safeSave()).
+     */
+
+    public static FileTask<Void> safeSave(final String fileName, final GenerationSnapshot grid) {
+        return start(new Job<Void>() {
+                public Void run(Progress progress) throws IOException {
+                    FileAccess.safeSave(fileName, grid, progress);
+                    return null;
+                }
+            });
+    }
+
+    /**
+     * Read a grid of the given size from a file in the
+     * background (see FileAccess.readGrid()).
+     */
+
+    public static FileTask<GenerationSnapshot> read(final String fileName, final int size) {
+        return start(new Job<GenerationSnapshot>() {
+                public GenerationSnapshot run(Progress progress) throws IOException {
+                    return FileAccess.readGrid(fileName, size, progress);
+                }
+            });
+    }
+
+    public CompletableFuture<T> getFuture() {
+        return _future;
+    }
+
+    public Progress getProgress() {
+        return _progress;
+    }
+
+    public void cancel() {
+        _progress.cancel();
+        _future.cancel(false);
+    }
+
+    /**
+     * Show a ProgressMonitor for this task, which only
+     * pops up if the task looks like it will take a while,
+     * and cancels the task if its Cancel button is pressed.
+     * Then call done on the Swing thread with the result,
+     * or with the exception if the task failed.  done is not
+     * called if the task was cancelled.  Must be called on
+     * the Swing thread.
+     */
+
+    public void monitor(Component parent, String message, final BiConsumer<T, Throwable> done) {
+        final ProgressMonitor monitor = new ProgressMonitor(parent, message, null, 0, 1000);
+        final javax.swing.Timer timer = new javax.swing.Timer(MONITOR_INTERVAL, null);
+        timer.addActionListener(new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    if (monitor.isCanceled()) {
+                        cancel();
+                    }
+                    if (!_future.isDone()) {
+                        monitor.setProgress((int) (_progress.getFraction() * 999));
+                        return;
+                    }
+                    timer.stop();
+                    monitor.close();
+                    if (_future.isCancelled()) {
+                        return;
+                    }
+                    T result = null;
+                    Throwable failure = null;
+                    try {
+                        result = _future.join();
+                    } catch (CompletionException ex) {
+                        failure = ex.getCause();
+                    }
+                    done.accept(result, failure);
+                }
+            });
+        timer.start();
+    }
+
+}
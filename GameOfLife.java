@@ -1,25 +1,104 @@
 public class GameOfLife {
 
     private static void showErrorMessage() {
-	System.out.println("Usage: java GameOfLife <size>");
+	System.out.println("Usage: java GameOfLife <size> [threads] [--canvas]");
+	System.out.println("   or: java GameOfLife --headless --input <file> --generations <n>");
+	System.out.println("                       [--output <file>] [--threads <t>]");
+	System.out.println("                       [--engine kernel|world|hashlife|sparse|offheap]");
+	System.out.println("                       [--journal <file> [--keyframes <k>]]");
 	System.out.println("Size must be a positive integer");
+	System.out.println("Threads must be a positive integer (default 1)");
+	System.out.println("More than one thread only works with the kernel engine");
+	System.out.println("--canvas draws the grid on one canvas instead of with buttons");
 	System.exit(1);
     }
     
+    /**
+     * Parse the options for a headless run and run it.
+     */
+
+    private static void runHeadless(String[] args) {
+	String input = null;
+	String output = null;
+	long generations = -1;
+	int threads = 1;
+	String engine = HeadlessRunner.KERNEL;
+	String journal = null;
+	int keyframes = Journal.DEFAULT_KEYFRAME_INTERVAL;
+
+	try {
+	    for (int j = 1; j < args.length; j++) {
+		String arg = args[j];
+		if (arg.equals("--input")) {
+		    input = args[++j];
+		} else if (arg.equals("--output")) {
+		    output = args[++j];
+		} else if (arg.equals("--generations")) {
+		    generations = Long.parseLong(args[++j]);
+		} else if (arg.equals("--threads")) {
+		    threads = Integer.parseInt(args[++j]);
+		} else if (arg.equals("--engine")) {
+		    engine = args[++j];
+		} else if (arg.equals("--journal")) {
+		    journal = args[++j];
+		} else if (arg.equals("--keyframes")) {
+		    keyframes = Integer.parseInt(args[++j]);
+		} else {
+		    showErrorMessage();
+		}
+	    }
+	} catch (Exception ex) {
+	    showErrorMessage();
+	}
+
+	if (input == null || generations < 0 || threads < 1 || keyframes < 1 || !HeadlessRunner.isEngine(engine)) {
+	    showErrorMessage();
+	}
+
+	HeadlessRunner runner = new HeadlessRunner(input, output, generations, threads, engine);
+	if (journal != null) {
+	    runner.setJournal(journal, keyframes);
+	}
+	if (!runner.run()) {
+	    System.exit(1);
+	}
+	System.exit(0);
+    }
+
     public static void main(String[] args) {
 	int size = -1;
+	int threads = 1;
+	boolean canvas = false;
 	
-	if (args.length != 1) {
+	if (args.length > 0 && args[0].equals("--headless")) {
+	    runHeadless(args);
+	}
+
+	// The --canvas flag, if given, comes last
+	int numbers = args.length;
+	if (numbers > 1 && args[numbers - 1].equals("--canvas")) {
+	    canvas = true;
+	    numbers--;
+	}
+
+	if (numbers < 1 || numbers > 2) {
 	    showErrorMessage();
 	}
 	
 	try {
 	    size = Integer.parseInt(args[0]);
+	    if (numbers > 1) {
+		threads = Integer.parseInt(args[1]);
+	    }
 	} catch (Exception ex) {
 	    showErrorMessage();
 	}
+
+	if (threads < 1) {
+	    showErrorMessage();
+	}
 	    
-	MainFrame mf = new MainFrame(size);
+	MainFrame mf = new MainFrame(size, threads, canvas);
     }
     
 }
@@ -0,0 +1,142 @@
+/**
+ * An immutable copy of one generation, packed one bit per cell.
+ * The simulation thread makes these and hands them to the Swing
+ * thread to draw, so the two never look at the same live data.
+ */
+
+public final class GenerationSnapshot implements CellGrid {
+
+    // Biggest size whose packed cells fit in one array
+    public static final int MAX_SIZE = 370727;
+
+    private final int _size;
+    private final long _generation;
+    private final long[] _bits;
+
+    /**
+     * Copy the current state of a grid.  A DenseKernel
+     * or an OffHeapWorld packs itself, which is much
+     * quicker.
+     */
+
+    public GenerationSnapshot(CellGrid grid, long generation) {
+        int size = grid.getSize();
+        long[] bits = new long[wordCount(size)];
+        if (grid instanceof DenseKernel) {
+            ((DenseKernel) grid).pack(bits);
+        } else if (grid instanceof OffHeapWorld) {
+            ((OffHeapWorld) grid).pack(bits);
+        } else {
+            long i = 0;
+            for (int j = 0; j < size; j++) {
+                for (int k = 0; k < size; k++) {
+                    if (grid.getAlive(j, k)) {
+                        bits[(int) (i >>> 6)] |= 1L << (i & 63);
+                    }
+                    i++;
+                }
+            }
+        }
+        _size = size;
+        _generation = generation;
+        _bits = bits;
+    }
+
+    /**
+     * Wrap cells that have already been packed, such as
+     * ones read back from a file.  Cell i (row * size +
+     * column) is bit i % 64 of bits[i / 64].  The array
+     * must not be changed afterwards.
+     */
+
+    GenerationSnapshot(int size, long generation, long[] bits) {
+        if (bits.length != wordCount(size)) {
+            throw new IllegalArgumentException("Wrong number of words for the size");
+        }
+        _size = size;
+        _generation = generation;
+        _bits = bits;
+    }
+
+    /**
+     * The number of longs it takes to pack a grid of
+     * the given size.
+     */
+
+    static int wordCount(int size) {
+        return (int) (((long) size * size + 63) / 64);
+    }
+
+    /**
+     * The packed cells, for writing out.  They must not
+     * be changed.
+     */
+
+    long[] bits() {
+        return _bits;
+    }
+
+    public int getSize() {
+        return _size;
+    }
+
+    /**
+     * The generation this is a copy of.
+     */
+
+    public long getGeneration() {
+        return _generation;
+    }
+
+    public boolean getAlive(int row, int col) {
+        long i = (long) row * _size + col;
+        return ((_bits[(int) (i >>> 6)] >>> (i & 63)) & 1L) != 0;
+    }
+
+    /**
+     * The first column at or after col in the given row
+     * whose cell is alive (or dead, if alive is false), or
+     * the size if there is none.  Whole words of cells in
+     * the other state are skipped at once.
+     */
+
+    public int nextCell(int row, int col, boolean alive) {
+        long rowStart = (long) row * _size;
+        long end = rowStart + _size;
+        long i = rowStart + col;
+        while (i < end) {
+            int w = (int) (i >>> 6);
+            long word = (alive ? _bits[w] : ~_bits[w]) & (-1L << (i & 63));
+            if (word != 0) {
+                long found = ((long) w << 6) + Long.numberOfTrailingZeros(word);
+                return (int) (Math.min(found, end) - rowStart);
+            }
+            i = ((long) w + 1) << 6;
+        }
+        return _size;
+    }
+
+    /**
+     * Fill in the cells that differ between an earlier
+     * snapshot and this one.  Whole words that match are
+     * skipped, so this is fast when little has changed.
+     */
+
+    public void diff(GenerationSnapshot before, ChangeSet changes) {
+        changes.clear();
+        for (int w = 0; w < _bits.length; w++) {
+            long changed = _bits[w] ^ before._bits[w];
+            while (changed != 0) {
+                int bit = Long.numberOfTrailingZeros(changed);
+                int index = (w << 6) + bit;
+                if (((_bits[w] >>> bit) & 1L) != 0) {
+                    changes.addBirth(index);
+                } else {
+                    changes.addDeath(index);
+                }
+                changed &= changed - 1;
+            }
+        }
+    }
+
+}
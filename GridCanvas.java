@@ -0,0 +1,158 @@
+import java.awt.*;
+import java.awt.event.*;
+import java.awt.image.*;
+import javax.swing.*;
+
+
+/**
+ * Draws the whole grid as one component instead of one Cell
+ * button per cell.  Each cell is one pixel of a BufferedImage,
+ * which is written directly through its int[] raster and then
+ * scaled up to fill the component.  Clicking on the component
+ * toggles the cell under the mouse, like clicking on a Cell.
+ *
+ * The colors are the same as Cell uses: red for alive, green
+ * for dead but alive at some point, gray for never alive.
+ */
+
+public class GridCanvas extends JComponent {
+
+    private static final int ALIVE = Color.RED.getRGB();
+    private static final int BEEN_ALIVE = Color.GREEN.getRGB();
+    private static final int NEVER_ALIVE = Color.GRAY.getRGB();
+
+    // Preferred width and height of the whole grid, in pixels
+    private static final int PREFERRED_SIDE = 500;
+
+    private MainPanel _m;
+
+    private int _size = 0;
+
+    private BufferedImage _image;
+
+    // The image's pixels, one int per cell, row-major
+    private int[] _pixels;
+
+    public GridCanvas(MainPanel m, int size) {
+        _m = m;
+        _size = size;
+        _image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        _pixels = ((DataBufferInt) _image.getRaster().getDataBuffer()).getData();
+        reset();
+
+        int side = Math.min(Math.max(1, PREFERRED_SIDE / size) * size, PREFERRED_SIDE);
+        setPreferredSize(new Dimension(side, side));
+        addMouseListener(new CanvasMouseListener());
+    }
+
+    /**
+     * Set every cell back to "never alive".
+     */
+
+    public void reset() {
+        java.util.Arrays.fill(_pixels, NEVER_ALIVE);
+        repaint();
+    }
+
+    /**
+     * Whether a cell is currently shown as alive.
+     */
+
+    public boolean getAlive(int row, int col) {
+        return _pixels[row * _size + col] == ALIVE;
+    }
+
+    /**
+     * Show one cell as alive or dead.  If resetBeenAlive is
+     * true a dead cell is shown as never having been alive,
+     * like Cell.resetBeenAlive().
+     */
+
+    public void setCell(int row, int col, boolean alive, boolean resetBeenAlive) {
+        int i = row * _size + col;
+        if (alive) {
+            _pixels[i] = ALIVE;
+        } else if (resetBeenAlive || _pixels[i] == NEVER_ALIVE) {
+            _pixels[i] = NEVER_ALIVE;
+        } else {
+            _pixels[i] = BEEN_ALIVE;
+        }
+    }
+
+    /**
+     * Show every cell of the given generation.
+     */
+
+    public void update(CellGrid grid) {
+        for (int j = 0; j < _size; j++) {
+            for (int k = 0; k < _size; k++) {
+                setCell(j, k, grid.getAlive(j, k), false);
+            }
+        }
+        repaint();
+    }
+
+    /**
+     * Show only the cells that changed, and repaint just the
+     * part of the component that covers them.
+     */
+
+    public void update(ChangeSet changes) {
+        if (changes.size() == 0) {
+            return;
+        }
+        int minRow = _size;
+        int maxRow = -1;
+        int minCol = _size;
+        int maxCol = -1;
+        for (int i = 0; i < changes.size(); i++) {
+            boolean birth = i < changes.getBirthCount();
+            int index = birth ? changes.getBirth(i) : changes.getDeath(i - changes.getBirthCount());
+            int row = index / _size;
+            int col = index % _size;
+            setCell(row, col, birth, false);
+            minRow = Math.min(minRow, row);
+            maxRow = Math.max(maxRow, row);
+            minCol = Math.min(minCol, col);
+            maxCol = Math.max(maxCol, col);
+        }
+
+        double cellSize = getSide() / (double) _size;
+        int x = (int) (minCol * cellSize);
+        int y = (int) (minRow * cellSize);
+        int width = (int) Math.ceil((maxCol + 1) * cellSize) - x;
+        int height = (int) Math.ceil((maxRow + 1) * cellSize) - y;
+        repaint(x, y, width, height);
+    }
+
+    /**
+     * Length of the side of the square the grid is drawn in.
+     */
+
+    private int getSide() {
+        return Math.max(1, Math.min(getWidth(), getHeight()));
+    }
+
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        int side = getSide();
+        g.drawImage(_image, 0, 0, side, side, null);
+    }
+
+    class CanvasMouseListener extends MouseAdapter {
+
+        // Work out which cell was clicked on by dividing the
+        // mouse position by the size of a cell on screen.
+
+        public void mousePressed(MouseEvent e) {
+            double cellSize = getSide() / (double) _size;
+            int row = (int) (e.getY() / cellSize);
+            int col = (int) (e.getX() / cellSize);
+            if (row >= 0 && row < _size && col >= 0 && col < _size) {
+                _m.toggleCell(row, col);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,607 @@
+import java.util.*;
+
+
+/**
+ * A HashLife engine, for jumping a pattern forward by huge numbers
+ * of generations at once.
+ *
+ * The universe is a quadtree.  Every node is a square of 2^level
+ * cells on a side, made of four nodes one level down, and every
+ * node is hash-consed: there is only ever one node object for a
+ * given square of cells, so repeated parts of a pattern are stored
+ * once.  Each node also remembers its "result", the center half of
+ * the square advanced 2^(level - 2) generations, so work done for
+ * one copy of a square is reused for every other copy and for
+ * every later generation it shows up in.
+ *
+ * Unlike MainPanel and the stepping kernels, the universe here is
+ * an unbounded plane and not a torus.  Patterns that never reach
+ * the edges of the grid behave the same either way; patterns that
+ * do will keep going instead of wrapping around.
+ *
+ * Loading and saving use the same X/. lines as
+ * FileAccess.loadFile() and MainPanel.toString().  The loaded
+ * lines are placed with their top left corner at (0, 0), and
+ * toString() writes out that same window.
+ */
+
+public class HashLife {
+
+    /**
+     * A square of cells.  Leaves (level 0) are single cells and
+     * have no children.
+     */
+
+    static final class Node {
+        final Node nw;
+        final Node ne;
+        final Node sw;
+        final Node se;
+        final int level;
+        final long population;
+        final int hash;
+
+        // The center, advanced 2^(level - 2) generations
+        Node result;
+
+        // The center, advanced 2^_stepLog generations, for
+        // steps smaller than the one kept in result
+        Node stepResult;
+        int stepLog = -1;
+
+        // Next node in the same hash table bucket
+        Node next;
+
+        Node(int alive) {
+            nw = ne = sw = se = null;
+            level = 0;
+            population = alive;
+            hash = alive;
+        }
+
+        Node(Node nw, Node ne, Node sw, Node se) {
+            this.nw = nw;
+            this.ne = ne;
+            this.sw = sw;
+            this.se = se;
+            level = nw.level + 1;
+            population = nw.population + ne.population + sw.population + se.population;
+            hash = hash(nw, ne, sw, se);
+        }
+
+        static int hash(Node nw, Node ne, Node sw, Node se) {
+            int h = nw.hash * 0x9E3779B1 + ne.hash * 0x85EBCA77
+                + sw.hash * 0xC2B2AE3D + se.hash * 0x27D4EB2F + nw.level;
+            return h ^ (h >>> 15);
+        }
+    }
+
+    // Default soft limit on the number of nodes in the cache
+    public static final int DEFAULT_MAX_NODES = 1 << 22;
+
+    // Smallest level the root is ever shrunk or built at
+    private static final int MIN_LEVEL = 3;
+
+    private final Node _dead = new Node(0);
+    private final Node _alive = new Node(1);
+
+    // Hash table of every canonical node above level 0
+    private Node[] _table = new Node[1 << 16];
+    private int _count = 0;
+    private int _maxNodes;
+
+    // Empty node of each level, so they do not have to be
+    // looked up every time
+    private Node[] _empty = new Node[64];
+
+    // The universe.  Its center is always at (0, 0), so it
+    // covers -2^(level-1) up to 2^(level-1) - 1 both ways.
+    private Node _root;
+
+    // The window that was loaded, and that toString() writes
+    private int _rows = 0;
+    private int _cols = 0;
+
+    private long _generation = 0;
+
+    public HashLife() {
+        this(DEFAULT_MAX_NODES);
+    }
+
+    /**
+     * Create an empty universe whose node cache is kept to
+     * about maxNodes nodes.  The limit is checked between
+     * steps, so a single large jump may go over it for a
+     * while before the cache is cleaned up.
+     */
+
+    public HashLife(int maxNodes) {
+        if (maxNodes < 1) {
+            throw new IllegalArgumentException("The node limit must be a positive integer");
+        }
+        _maxNodes = maxNodes;
+        _empty[0] = _dead;
+        _root = empty(MIN_LEVEL);
+    }
+
+    /**
+     * Create a universe holding the given lines in the X/.
+     * format, with the default node limit.
+     */
+
+    public HashLife(ArrayList<String> lines) {
+        this();
+        load(lines);
+    }
+
+    public long getGeneration() {
+        return _generation;
+    }
+
+    public long getPopulation() {
+        return _root.population;
+    }
+
+    /**
+     * The number of nodes currently in the cache.
+     */
+
+    public int getNodeCount() {
+        return _count;
+    }
+
+    public int getMaxNodes() {
+        return _maxNodes;
+    }
+
+    /**
+     * Set the window written by toString().
+     */
+
+    public void setWindow(int rows, int cols) {
+        _rows = rows;
+        _cols = cols;
+    }
+
+    /**
+     * Find the canonical node with the given children,
+     * creating it if there is none yet.
+     */
+
+    private Node join(Node nw, Node ne, Node sw, Node se) {
+        int h = Node.hash(nw, ne, sw, se);
+        int i = h & (_table.length - 1);
+        for (Node n = _table[i]; n != null; n = n.next) {
+            if (n.nw == nw && n.ne == ne && n.sw == sw && n.se == se) {
+                return n;
+            }
+        }
+        Node n = new Node(nw, ne, sw, se);
+        insert(n);
+        return n;
+    }
+
+    private void insert(Node n) {
+        if (_count >= _table.length - (_table.length >> 2)) {
+            resize();
+        }
+        int i = n.hash & (_table.length - 1);
+        n.next = _table[i];
+        _table[i] = n;
+        _count++;
+    }
+
+    private void resize() {
+        Node[] old = _table;
+        _table = new Node[old.length * 2];
+        for (int j = 0; j < old.length; j++) {
+            Node n = old[j];
+            while (n != null) {
+                Node next = n.next;
+                int i = n.hash & (_table.length - 1);
+                n.next = _table[i];
+                _table[i] = n;
+                n = next;
+            }
+        }
+    }
+
+    private Node empty(int level) {
+        if (_empty[level] == null) {
+            Node e = empty(level - 1);
+            _empty[level] = join(e, e, e, e);
+        }
+        return _empty[level];
+    }
+
+    /**
+     * Kill every cell and reset the generation count.
+     */
+
+    public void clear() {
+        _root = empty(MIN_LEVEL);
+        _generation = 0;
+    }
+
+    /**
+     * Load a configuration in the X/. format.  A '.' is
+     * a dead cell and anything else is alive.
+     */
+
+    public void load(ArrayList<String> lines) {
+        clear();
+        int rows = lines.size();
+        int cols = 0;
+        for (int j = 0; j < rows; j++) {
+            cols = Math.max(cols, lines.get(j).length());
+        }
+        _rows = rows;
+        _cols = cols;
+
+        // Grow the root until the whole window fits, then
+        // build it in one pass from the lines.
+        int level = MIN_LEVEL;
+        while ((1L << (level - 1)) < Math.max(rows, cols)) {
+            level++;
+        }
+        long half = 1L << (level - 1);
+        _root = build(lines, level, -half, -half);
+    }
+
+    private Node build(ArrayList<String> lines, int level, long top, long left) {
+        long side = 1L << level;
+        if (top >= _rows || left >= _cols || top + side <= 0 || left + side <= 0) {
+            return empty(level);
+        }
+        if (level == 0) {
+            String l = lines.get((int) top);
+            return (left < l.length() && l.charAt((int) left) != '.') ? _alive : _dead;
+        }
+        long half = side / 2;
+        return join(build(lines, level - 1, top, left),
+                    build(lines, level - 1, top, left + half),
+                    build(lines, level - 1, top + half, left),
+                    build(lines, level - 1, top + half, left + half));
+    }
+
+    /**
+     * Whether the cell at the given row and column is alive.
+     * Any coordinates are allowed, including ones outside
+     * the loaded window.
+     */
+
+    public boolean getAlive(long row, long col) {
+        long half = 1L << (_root.level - 1);
+        if (row < -half || row >= half || col < -half || col >= half) {
+            return false;
+        }
+        Node n = _root;
+        long top = -half;
+        long left = -half;
+        while (n.level > 0 && n.population > 0) {
+            long mid = 1L << (n.level - 1);
+            boolean south = row >= top + mid;
+            boolean east = col >= left + mid;
+            if (south) {
+                top += mid;
+            }
+            if (east) {
+                left += mid;
+            }
+            n = south ? (east ? n.se : n.sw) : (east ? n.ne : n.nw);
+        }
+        return n.population > 0;
+    }
+
+    public void setAlive(long row, long col, boolean alive) {
+        while (true) {
+            long half = 1L << (_root.level - 1);
+            if (row >= -half && row < half && col >= -half && col < half) {
+                break;
+            }
+            _root = expand(_root);
+        }
+        long half = 1L << (_root.level - 1);
+        _root = set(_root, row + half, col + half, alive);
+    }
+
+    /**
+     * Return a copy of the node with one cell changed.  The
+     * coordinates are relative to the node's top left corner.
+     */
+
+    private Node set(Node n, long row, long col, boolean alive) {
+        if (n.level == 0) {
+            return alive ? _alive : _dead;
+        }
+        long mid = 1L << (n.level - 1);
+        if (row < mid) {
+            if (col < mid) {
+                return join(set(n.nw, row, col, alive), n.ne, n.sw, n.se);
+            }
+            return join(n.nw, set(n.ne, row, col - mid, alive), n.sw, n.se);
+        }
+        if (col < mid) {
+            return join(n.nw, n.ne, set(n.sw, row - mid, col, alive), n.se);
+        }
+        return join(n.nw, n.ne, n.sw, set(n.se, row - mid, col - mid, alive));
+    }
+
+    /**
+     * Surround a node with empty space, giving a node one
+     * level up with the old one in its center.
+     */
+
+    private Node expand(Node n) {
+        Node e = empty(n.level - 1);
+        return join(join(e, e, e, n.nw),
+                    join(e, e, n.ne, e),
+                    join(e, n.sw, e, e),
+                    join(n.se, e, e, e));
+    }
+
+    /**
+     * The center of a node, one level down.
+     */
+
+    private Node center(Node n) {
+        return join(n.nw.se, n.ne.sw, n.sw.ne, n.se.nw);
+    }
+
+    /**
+     * Whether every live cell of the node is in its center
+     * half, so that it can be shrunk or stepped safely.
+     */
+
+    private boolean isCentered(Node n) {
+        return center(n).population == n.population;
+    }
+
+    /**
+     * Advance the universe by the given number of generations.
+     * The count is split into powers of two, each of which is
+     * a single jump.
+     */
+
+    public void step(long generations) {
+        if (generations < 0) {
+            throw new IllegalArgumentException("Cannot step backwards");
+        }
+        for (int k = 0; k < 63 && (generations >>> k) != 0; k++) {
+            if (((generations >>> k) & 1L) != 0) {
+                stepPow2(k);
+            }
+        }
+    }
+
+    /**
+     * Advance one generation.
+     */
+
+    public void step() {
+        stepPow2(0);
+    }
+
+    /**
+     * Advance the universe by 2^k generations in one jump.
+     */
+
+    public void stepPow2(int k) {
+        // The result of a node is its center half, so the root
+        // has to be big enough that the pattern cannot grow
+        // out of that center in 2^k generations.
+        while (_root.level < k + 2 || !isCentered(_root) || !isCentered(center(_root))) {
+            _root = expand(_root);
+        }
+        _root = expand(_root);
+        _root = successor(_root, k);
+        _generation += 1L << k;
+
+        // Shrink the root back down while the pattern still
+        // fits, so empty space is not carried around.
+        while (_root.level > MIN_LEVEL && isCentered(_root)) {
+            _root = center(_root);
+        }
+
+        if (_count > _maxNodes) {
+            collect();
+        }
+    }
+
+    /**
+     * The center of the node, one level down, advanced
+     * 2^log generations.  log must be at most level - 2.
+     */
+
+    private Node successor(Node n, int log) {
+        if (n.population == 0) {
+            return empty(n.level - 1);
+        }
+        boolean full = (log == n.level - 2);
+        if (full && n.result != null) {
+            return n.result;
+        }
+        if (!full && n.stepLog == log) {
+            return n.stepResult;
+        }
+
+        Node result;
+        if (n.level == 2) {
+            result = stepBase(n);
+        } else {
+            // The nine overlapping squares, each half the size
+            // of this node, that cover its center.
+            Node n00 = n.nw;
+            Node n01 = join(n.nw.ne, n.ne.nw, n.nw.se, n.ne.sw);
+            Node n02 = n.ne;
+            Node n10 = join(n.nw.sw, n.nw.se, n.sw.nw, n.sw.ne);
+            Node n11 = join(n.nw.se, n.ne.sw, n.sw.ne, n.se.nw);
+            Node n12 = join(n.ne.sw, n.ne.se, n.se.nw, n.se.ne);
+            Node n20 = n.sw;
+            Node n21 = join(n.sw.ne, n.se.nw, n.sw.se, n.se.sw);
+            Node n22 = n.se;
+
+            // For a full step each square is advanced half the
+            // way here and the other half below.  For a smaller
+            // step they are just cut down to their centers and
+            // the whole step happens below.
+            int half = n.level - 3;
+            if (full) {
+                n00 = successor(n00, half);
+                n01 = successor(n01, half);
+                n02 = successor(n02, half);
+                n10 = successor(n10, half);
+                n11 = successor(n11, half);
+                n12 = successor(n12, half);
+                n20 = successor(n20, half);
+                n21 = successor(n21, half);
+                n22 = successor(n22, half);
+            } else {
+                n00 = center(n00);
+                n01 = center(n01);
+                n02 = center(n02);
+                n10 = center(n10);
+                n11 = center(n11);
+                n12 = center(n12);
+                n20 = center(n20);
+                n21 = center(n21);
+                n22 = center(n22);
+            }
+
+            int rest = full ? half : log;
+            result = join(successor(join(n00, n01, n10, n11), rest),
+                          successor(join(n01, n02, n11, n12), rest),
+                          successor(join(n10, n11, n20, n21), rest),
+                          successor(join(n11, n12, n21, n22), rest));
+        }
+
+        if (full) {
+            n.result = result;
+        } else {
+            n.stepResult = result;
+            n.stepLog = log;
+        }
+        return result;
+    }
+
+    /**
+     * Advance the center 2x2 of a 4x4 node by one generation.
+     */
+
+    private Node stepBase(Node n) {
+        // Pack the 16 cells into an int, row by row, with
+        // bit (row * 4 + col).
+        int bits = 0;
+        Node[] quads = { n.nw, n.ne, n.sw, n.se };
+        for (int q = 0; q < 4; q++) {
+            Node c = quads[q];
+            int row = (q / 2) * 2;
+            int col = (q % 2) * 2;
+            bits |= (int) c.nw.population << (row * 4 + col);
+            bits |= (int) c.ne.population << (row * 4 + col + 1);
+            bits |= (int) c.sw.population << ((row + 1) * 4 + col);
+            bits |= (int) c.se.population << ((row + 1) * 4 + col + 1);
+        }
+        return join(nextCell(bits, 1, 1), nextCell(bits, 1, 2),
+                    nextCell(bits, 2, 1), nextCell(bits, 2, 2));
+    }
+
+    private Node nextCell(int bits, int row, int col) {
+        int numNeighbors = 0;
+        for (int dr = -1; dr <= 1; dr++) {
+            for (int dc = -1; dc <= 1; dc++) {
+                if (dr != 0 || dc != 0) {
+                    numNeighbors += (bits >>> ((row + dr) * 4 + col + dc)) & 1;
+                }
+            }
+        }
+        int alive = (bits >>> (row * 4 + col)) & 1;
+        return ((numNeighbors | alive) == 3) ? _alive : _dead;
+    }
+
+    /**
+     * Throw away every node that is not part of the current
+     * universe, along with all remembered results.  Called
+     * when the cache grows past its limit.
+     */
+
+    private void collect() {
+        _table = new Node[_table.length];
+        _count = 0;
+        for (int level = 1; level < _empty.length && _empty[level] != null; level++) {
+            keep(_empty[level]);
+        }
+        keep(_root);
+    }
+
+    private void keep(Node n) {
+        if (n.level == 0) {
+            return;
+        }
+        int i = n.hash & (_table.length - 1);
+        for (Node m = _table[i]; m != null; m = m.next) {
+            if (m == n) {
+                return;
+            }
+        }
+        n.result = null;
+        n.stepResult = null;
+        n.stepLog = -1;
+        keep(n.nw);
+        keep(n.ne);
+        keep(n.sw);
+        keep(n.se);
+        insert(n);
+    }
+
+    /**
+     * Write the loaded window out in the X/. format, one
+     * line per row, like MainPanel.toString().
+     */
+
+    public String toString() {
+        return toString(0, 0, _rows, _cols);
+    }
+
+    public String toString(long top, long left, int rows, int cols) {
+        char[][] grid = new char[rows][cols];
+        for (int j = 0; j < rows; j++) {
+            Arrays.fill(grid[j], '.');
+        }
+        long half = 1L << (_root.level - 1);
+        render(_root, -half, -half, grid, top, left);
+
+        StringBuilder sb = new StringBuilder(rows * (cols + 1));
+        for (int j = 0; j < rows; j++) {
+            sb.append(grid[j]);
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Mark the live cells of a node inside the window,
+     * skipping empty nodes and nodes outside the window.
+     */
+
+    private void render(Node n, long nodeTop, long nodeLeft, char[][] grid, long top, long left) {
+        long side = 1L << n.level;
+        int rows = grid.length;
+        int cols = (rows == 0) ? 0 : grid[0].length;
+        if (n.population == 0
+            || nodeTop >= top + rows || nodeTop + side <= top
+            || nodeLeft >= left + cols || nodeLeft + side <= left) {
+            return;
+        }
+        if (n.level == 0) {
+            grid[(int) (nodeTop - top)][(int) (nodeLeft - left)] = 'X';
+            return;
+        }
+        long half = side / 2;
+        render(n.nw, nodeTop, nodeLeft, grid, top, left);
+        render(n.ne, nodeTop, nodeLeft + half, grid, top, left);
+        render(n.sw, nodeTop + half, nodeLeft, grid, top, left);
+        render(n.se, nodeTop + half, nodeLeft + half, grid, top, left);
+    }
+
+}
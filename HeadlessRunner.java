@@ -0,0 +1,326 @@
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * Runs a simulation from a saved file without any GUI, for batch
+ * jobs on machines with no display.  No Cells or other Swing
+ * components are created, and nothing is printed per generation;
+ * only the elapsed time and speed are reported at the end.
+ */
+
+public class HeadlessRunner {
+
+    public static final String KERNEL = "kernel";
+    public static final String WORLD = "world";
+    public static final String HASHLIFE = "hashlife";
+    public static final String SPARSE = "sparse";
+    public static final String OFFHEAP = "offheap";
+
+    private String _input;
+    private String _output;
+    private long _generations;
+    private int _threads;
+    private String _engine;
+
+    // Journal to record, or null
+    private String _journal;
+    private int _keyframeInterval = Journal.DEFAULT_KEYFRAME_INTERVAL;
+
+    public HeadlessRunner(String input, String output, long generations, int threads, String engine) {
+        _input = input;
+        _output = output;
+        _generations = generations;
+        _threads = threads;
+        _engine = engine;
+    }
+
+    /**
+     * Record a journal of the run (see Journal), with a
+     * keyframe every so many generations.  Only the kernel
+     * engine can be recorded.
+     */
+
+    public void setJournal(String fileName, int keyframeInterval) {
+        _journal = fileName;
+        _keyframeInterval = keyframeInterval;
+    }
+
+    /**
+     * Whether the given name is one of the engines this
+     * runner knows about.
+     */
+
+    public static boolean isEngine(String name) {
+        return KERNEL.equals(name) || WORLD.equals(name)
+            || HASHLIFE.equals(name) || SPARSE.equals(name) || OFFHEAP.equals(name);
+    }
+
+    /**
+     * Drop the blank lines at the end of a saved file,
+     * such as the one MainPanel.toString() leaves after
+     * the last row, so they are not taken as rows of the
+     * board.
+     */
+
+    static void trimBlankLines(ArrayList<String> lines) {
+        while (!lines.isEmpty() && lines.get(lines.size() - 1).trim().isEmpty()) {
+            lines.remove(lines.size() - 1);
+        }
+    }
+
+    /**
+     * Load the input, run the generations and save the
+     * result.  Returns false if a file could not be read
+     * or written.
+     */
+
+    public boolean run() {
+        if (_threads > 1 && !KERNEL.equals(_engine)) {
+            System.out.println("Only the " + KERNEL + " engine can use more than one thread");
+            return false;
+        }
+
+        boolean planar = HASHLIFE.equals(_engine) || SPARSE.equals(_engine);
+        LifeEngine engine = null;
+        HashLife hashLife = null;
+        SparseWorld sparse = null;
+        OffHeapWorld offHeap = null;
+        int size;
+
+        // The generation the input was saved at, which the
+        // run carries on from
+        long startGeneration = 0;
+
+        try {
+            if (planar) {
+                if (HASHLIFE.equals(_engine)) {
+                    hashLife = new HashLife();
+                } else {
+                    sparse = new SparseWorld();
+                }
+                size = loadPlanar(hashLife, sparse);
+            } else {
+                // Read the file straight into the engine,
+                // without keeping its lines around
+                size = FileAccess.measureGrid(_input);
+                if (OFFHEAP.equals(_engine)) {
+                    offHeap = loadOffHeap(size);
+                    engine = offHeap;
+                    startGeneration = offHeap.getGeneration();
+                } else {
+                    if (WORLD.equals(_engine)) {
+                        engine = new World(size);
+                    } else {
+                        engine = new DenseKernel(size, _threads);
+                    }
+                    startGeneration = FileAccess.loadGrid(_input, engine);
+                }
+            }
+        } catch (IOException ioex) {
+            System.out.println("COULD NOT READ FILE " + _input + ": " + ioex.getMessage());
+            return false;
+        } catch (IllegalArgumentException ex) {
+            System.out.println("CANNOT RUN " + _input + " WITH THE " + _engine + " ENGINE: " + ex.getMessage());
+            return false;
+        }
+
+        if (_journal != null && !(engine instanceof DenseKernel)) {
+            System.out.println("Only the " + KERNEL + " engine can record a journal");
+            if (offHeap != null) {
+                try {
+                    offHeap.discard();
+                } catch (IOException ex) {
+                    // Nothing was written to the output anyway
+                }
+            }
+            return false;
+        }
+
+        long start = System.nanoTime();
+
+        if (hashLife != null) {
+            hashLife.step(_generations);
+        } else if (sparse != null) {
+            sparse.step(_generations);
+        } else if (_journal != null) {
+            if (!runRecording((DenseKernel) engine, startGeneration)) {
+                return false;
+            }
+        } else {
+            for (long g = 0; g < _generations; g++) {
+                engine.step();
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+        double seconds = elapsed / 1e9;
+        System.out.println("Ran " + _generations + " generations of a "
+                           + size + "x" + size + " board with the "
+                           + _engine + " engine in " + String.format("%.3f", seconds) + " s");
+        if (seconds > 0) {
+            System.out.println(String.format("%.1f", _generations / seconds) + " generations/sec");
+        }
+
+        if (_output != null) {
+            boolean saved;
+            if (offHeap != null && offHeap.isMapped()) {
+                // The grid is a copy of the output, which only
+                // has to be flushed and renamed over it
+                try {
+                    offHeap.close();
+                    saved = true;
+                } catch (IOException ioex) {
+                    saved = false;
+                }
+            } else if (offHeap != null) {
+                // Saved with its own generation, straight
+                // from its memory
+                saved = FileAccess.saveFile(_output, engine);
+            } else if (!planar) {
+                saved = FileAccess.saveFile(_output, withGeneration(engine, startGeneration + _generations));
+            } else if (FileAccess.isRle(_output) || FileAccess.isSnapshot(_output)) {
+                saved = FileAccess.saveFile(_output, withGeneration(window(hashLife, sparse, size),
+                                                                    startGeneration + _generations));
+            } else {
+                saved = FileAccess.saveFile(_output, (hashLife != null) ? hashLife.toString() : sparse.toString());
+            }
+            if (!saved) {
+                System.out.println("COULD NOT WRITE FILE " + _output);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The off-heap grid for the run, with the input loaded.
+     * If the output is an uncompressed snapshot, the grid is
+     * a temporary file beside it, mapped into memory, which
+     * replaces it at the end.  The output (which may be the
+     * input, to carry on from it) is not touched until then,
+     * so killing the run leaves it as it was.  Otherwise the
+     * grid is in a direct buffer.
+     */
+
+    private OffHeapWorld loadOffHeap(int size) throws IOException {
+        if (_output == null || !FileAccess.isSnapshot(_output)
+            || _output.toLowerCase().endsWith(".snapz")) {
+            OffHeapWorld world = new OffHeapWorld(size);
+            FileAccess.loadGrid(_input, world);
+            return world;
+        }
+        OffHeapWorld world = OffHeapWorld.replacing(_output, size);
+        try {
+            FileAccess.loadGrid(_input, world);
+        } catch (IOException ex) {
+            world.discard();
+            throw ex;
+        } catch (RuntimeException ex) {
+            world.discard();
+            throw ex;
+        }
+        return world;
+    }
+
+    /**
+     * The grid to save at the end of the run: for a
+     * snapshot, a copy that keeps the generation it has
+     * reached, and otherwise the grid itself.
+     */
+
+    private CellGrid withGeneration(CellGrid grid, long generation) {
+        if (!FileAccess.isSnapshot(_output)) {
+            return grid;
+        }
+        return new GenerationSnapshot(grid, generation);
+    }
+
+    /**
+     * Run the generations on the kernel, recording each one
+     * in the journal, which starts at the given generation.
+     * Returns false if the journal could not be written.
+     */
+
+    private boolean runRecording(DenseKernel kernel, long startGeneration) {
+        ChangeSet changes = new ChangeSet();
+        try {
+            Journal.Recorder recorder = new Journal.Recorder(_journal, kernel, startGeneration,
+                                                             _keyframeInterval);
+            try {
+                for (long g = startGeneration + 1; g <= startGeneration + _generations; g++) {
+                    kernel.step();
+                    kernel.getChanges(changes);
+                    recorder.recordStep(changes, kernel, g);
+                }
+            } finally {
+                recorder.close();
+            }
+            return true;
+        } catch (IOException ioex) {
+            System.out.println("COULD NOT WRITE JOURNAL " + _journal + ": " + ioex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Load the input into whichever of the planar engines
+     * is not null, and return the side of the square that
+     * holds it.  An RLE file only costs time for its runs
+     * of live cells, not for its whole area.
+     */
+
+    private int loadPlanar(HashLife hashLife, SparseWorld sparse) throws IOException {
+        if (!FileAccess.isRle(_input)) {
+            ArrayList<String> lines = FileAccess.loadFile(_input);
+            if (lines != null) {
+                trimBlankLines(lines);
+            }
+            if (lines == null || lines.isEmpty()) {
+                throw new IOException("No lines");
+            }
+            if (hashLife != null) {
+                hashLife.load(lines);
+            } else {
+                sparse.load(lines);
+            }
+            return lines.size();
+        }
+
+        RleCodec.Pattern pattern = FileAccess.loadRle(_input);
+        for (int i = 0; i < pattern.getRunCount(); i++) {
+            int row = pattern.getRunRow(i);
+            int col = pattern.getRunCol(i);
+            for (int k = 0; k < pattern.getRunLength(i); k++) {
+                if (hashLife != null) {
+                    hashLife.setAlive(row, col + k, true);
+                } else {
+                    sparse.setAlive(row, col + k, true);
+                }
+            }
+        }
+        if (hashLife != null) {
+            hashLife.setWindow(pattern.getHeight(), pattern.getWidth());
+        } else {
+            sparse.setWindow(pattern.getHeight(), pattern.getWidth());
+        }
+        return Math.max(pattern.getWidth(), pattern.getHeight());
+    }
+
+    /**
+     * The square at the top left of a planar engine, as a
+     * grid that can be saved.
+     */
+
+    private static CellGrid window(final HashLife hashLife, final SparseWorld sparse, final int size) {
+        return new CellGrid() {
+            public int getSize() {
+                return size;
+            }
+            public boolean getAlive(int row, int col) {
+                return (hashLife != null) ? hashLife.getAlive(row, col) : sparse.getAlive(row, col);
+            }
+        };
+    }
+
+}
@@ -0,0 +1,271 @@
+/**
+ * A bounded undo/redo history of a board.
+ *
+ * Each change to the board is one entry: a step, or a set of cells
+ * changed by hand (a click, a load, a clear).  An entry holds only
+ * the cells that were born and the cells that died, so recording it
+ * costs time and memory in proportion to how much changed, not to
+ * the size of the board.  Undoing an entry sets its births back to
+ * dead and its deaths back to alive; redoing it does the opposite.
+ *
+ * Every so many steps the entry also keeps a full keyframe of the
+ * board after it.  Going back or forward a long way restores the
+ * nearest keyframe and replays the entries after it, if that is
+ * cheaper than undoing every entry in between.
+ *
+ * Entries are kept in a ring.  When there are more than fit, or
+ * they take more memory than allowed, the oldest are dropped.
+ * Recording a new entry drops everything that could be redone.
+ */
+
+public class History {
+
+    // Most entries kept by default
+    public static final int DEFAULT_CAPACITY = 512;
+
+    // Steps between keyframes by default
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 64;
+
+    // Most bytes of entries and keyframes kept by default
+    public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+    private int _size = 0;
+
+    // Entry i (0 is the oldest) is at _entries[(_start + i) % length]
+    private Entry[] _entries;
+    private int _start = 0;
+    private int _count = 0;
+
+    // Number of entries currently applied.  The ones from
+    // _top to _count can be redone.
+    private int _top = 0;
+
+    private int _keyframeInterval = 0;
+    private int _stepsSinceKeyframe = 0;
+
+    private long _maxBytes = 0;
+    private long _bytes = 0;
+
+    public History(int size) {
+        this(size, DEFAULT_CAPACITY, DEFAULT_KEYFRAME_INTERVAL, DEFAULT_MAX_BYTES);
+    }
+
+    public History(int size, int capacity, int keyframeInterval, long maxBytes) {
+        if (capacity < 1 || keyframeInterval < 1) {
+            throw new IllegalArgumentException("Capacity and keyframe interval must be positive integers");
+        }
+        _size = size;
+        _entries = new Entry[capacity];
+        _keyframeInterval = keyframeInterval;
+        _maxBytes = maxBytes;
+    }
+
+    /**
+     * Forget every entry.
+     */
+
+    public void clear() {
+        java.util.Arrays.fill(_entries, null);
+        _start = 0;
+        _count = 0;
+        _top = 0;
+        _stepsSinceKeyframe = 0;
+        _bytes = 0;
+    }
+
+    public int getUndoCount() {
+        return _top;
+    }
+
+    public int getRedoCount() {
+        return _count - _top;
+    }
+
+    private Entry entry(int i) {
+        return _entries[(_start + i) % _entries.length];
+    }
+
+    /**
+     * Record a change that has just been made to the board.
+     * step says whether it was a generation being computed,
+     * and after is the board as it is now, for keyframes.
+     */
+
+    public void record(ChangeSet changes, boolean step, CellGrid after, long generation) {
+        // Anything that could have been redone is gone
+        while (_count > _top) {
+            _bytes -= entry(_count - 1).bytes();
+            _entries[(_start + _count - 1) % _entries.length] = null;
+            _count--;
+        }
+
+        Entry e = new Entry(changes.copyBirths(), changes.copyDeaths(), step);
+        if (step && ++_stepsSinceKeyframe >= _keyframeInterval) {
+            e._keyframe = new GenerationSnapshot(after, generation);
+            _stepsSinceKeyframe = 0;
+        }
+
+        if (_count == _entries.length) {
+            dropOldest();
+        }
+        _entries[(_start + _count) % _entries.length] = e;
+        _count++;
+        _top = _count;
+        _bytes += e.bytes();
+        while (_bytes > _maxBytes && _count > 1) {
+            dropOldest();
+        }
+    }
+
+    private void dropOldest() {
+        _bytes -= _entries[_start].bytes();
+        _entries[_start] = null;
+        _start = (_start + 1) % _entries.length;
+        _count--;
+        _top = Math.max(0, _top - 1);
+    }
+
+    /**
+     * Undo up to the given number of entries on the board,
+     * and return how many generations the board went back.
+     */
+
+    public long undo(LifeEngine board, int levels) {
+        return moveTo(board, Math.max(0, _top - levels));
+    }
+
+    /**
+     * Redo up to the given number of entries on the board,
+     * and return how many generations the board went forward.
+     */
+
+    public long redo(LifeEngine board, int levels) {
+        return moveTo(board, Math.min(_count, _top + levels));
+    }
+
+    /**
+     * Bring the board to how it was after the first target
+     * entries, and return the number of steps between there
+     * and where it was (negative if it went back).
+     */
+
+    private long moveTo(LifeEngine board, int target) {
+        int from = _top;
+        if (target == from) {
+            return 0;
+        }
+
+        long steps = 0;
+        long walkCost = 0;
+        for (int i = Math.min(from, target); i < Math.max(from, target); i++) {
+            walkCost += entry(i).cells();
+            if (entry(i)._step) {
+                steps++;
+            }
+        }
+        if (target < from) {
+            steps = -steps;
+        }
+
+        // The nearest keyframe at or before the target, and
+        // what it would cost to go from there instead.  Entry
+        // j's keyframe is the board after entry j.
+        int keyframe = -1;
+        long keyframeCost = (long) _size * _size;
+        for (int j = target - 1; j >= 0 && keyframeCost < walkCost; j--) {
+            if (entry(j)._keyframe != null) {
+                keyframe = j;
+                break;
+            }
+            keyframeCost += entry(j).cells();
+        }
+
+        if (keyframe >= 0 && keyframeCost < walkCost) {
+            GenerationSnapshot snapshot = entry(keyframe)._keyframe;
+            for (int r = 0; r < _size; r++) {
+                for (int c = 0; c < _size; c++) {
+                    board.setAlive(r, c, snapshot.getAlive(r, c));
+                }
+            }
+            for (int i = keyframe + 1; i < target; i++) {
+                apply(entry(i), board, true);
+            }
+        } else if (target < from) {
+            for (int i = from - 1; i >= target; i--) {
+                apply(entry(i), board, false);
+            }
+        } else {
+            for (int i = from; i < target; i++) {
+                apply(entry(i), board, true);
+            }
+        }
+        _top = target;
+        return steps;
+    }
+
+    /**
+     * Apply the newest applied entry to a copy of the board
+     * (forward true), or take it back out (forward false).
+     * Does nothing if there is no such entry.  Cells are set
+     * rather than flipped, so applying an entry to a board
+     * that already has it changes nothing.
+     */
+
+    public void applyTop(boolean[][] cells, boolean forward) {
+        if (_top == 0) {
+            return;
+        }
+        Entry e = entry(_top - 1);
+        int[] alive = forward ? e._births : e._deaths;
+        int[] dead = forward ? e._deaths : e._births;
+        for (int i = 0; i < alive.length; i++) {
+            cells[alive[i] / _size][alive[i] % _size] = true;
+        }
+        for (int i = 0; i < dead.length; i++) {
+            cells[dead[i] / _size][dead[i] % _size] = false;
+        }
+    }
+
+    private void apply(Entry e, LifeEngine board, boolean forward) {
+        int[] alive = forward ? e._births : e._deaths;
+        int[] dead = forward ? e._deaths : e._births;
+        for (int i = 0; i < alive.length; i++) {
+            board.setAlive(alive[i] / _size, alive[i] % _size, true);
+        }
+        for (int i = 0; i < dead.length; i++) {
+            board.setAlive(dead[i] / _size, dead[i] % _size, false);
+        }
+    }
+
+    static class Entry {
+
+        private int[] _births;
+        private int[] _deaths;
+
+        // Whether this was a step, rather than a change by hand
+        private boolean _step;
+
+        // The board after this entry, or null
+        private GenerationSnapshot _keyframe;
+
+        public Entry(int[] births, int[] deaths, boolean step) {
+            _births = births;
+            _deaths = deaths;
+            _step = step;
+        }
+
+        public int cells() {
+            return _births.length + _deaths.length;
+        }
+
+        public long bytes() {
+            long bytes = 4L * cells() + 64;
+            if (_keyframe != null) {
+                bytes += ((long) _keyframe.getSize() * _keyframe.getSize() + 7) / 8;
+            }
+            return bytes;
+        }
+
+    }
+
+}
@@ -0,0 +1,605 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+
+/**
+ * An append-only journal of a run, for going back to any generation
+ * of it later without computing everything up to there again.
+ *
+ *     java Journal <journal> [<generation> [<output file>]]
+ *
+ * A Recorder writes the journal as the run goes.  It starts with a
+ * keyframe (the whole board), then has one record per generation
+ * holding just the cells that were born and died, and another
+ * keyframe every K generations.  Seeking to a generation loads the
+ * keyframe at or before it and replays at most K records after it.
+ * Given only a journal, the program above prints what is in it;
+ * given a generation too, it prints or saves the board at that
+ * generation.
+ *
+ * The file is a 16 byte header:
+ *
+ *     magic "GOLJ", u16 version (1), u16 flags (0),
+ *     i32 size, i32 keyframe interval (little-endian)
+ *
+ * followed by records, each a type byte, the length of the rest of
+ * the record as a varint (7 bits a byte, low bits first), and then:
+ *
+ *     'K'  keyframe: the generation as a varint, then the board
+ *          packed as in GenerationSnapshot and deflated
+ *     'S'  step: the changes that led to the next generation
+ *     'E'  edit: changes made by hand, within a generation
+ *
+ * Changes are the number of births and of deaths as varints, then
+ * the sorted cell indexes (row * size + column) of each, as varint
+ * gaps from the one before.  A typical generation takes a few bytes
+ * per changed cell.
+ *
+ * A journal is read through a memory mapping.  Opening one scans it
+ * once to find the keyframes.  A record cut short at the end, say by
+ * a crash, is left out, and so is a record of no known type, such as
+ * the zeroes some file systems leave at the end of a file after a
+ * crash, along with everything after it.  So a journal is usable up
+ * to the last record that was completely written.
+ */
+
+public class Journal {
+
+    public static final int VERSION = 1;
+
+    // Generations between keyframes by default
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 1000;
+
+    private static final byte[] MAGIC = { 'G', 'O', 'L', 'J' };
+
+    private static final int HEADER_LENGTH = 16;
+
+    static final int KEYFRAME = 'K';
+    static final int STEP = 'S';
+    static final int EDIT = 'E';
+
+    private FileChannel _channel;
+    private FileAccess.MappedReader _in;
+
+    private int _size = 0;
+    private int _keyframeInterval = 0;
+
+    // Generation and file offset of each keyframe, in order
+    private long[] _keyGenerations = new long[16];
+    private long[] _keyOffsets = new long[16];
+    private int _keyCount = 0;
+
+    private long _lastGeneration = 0;
+
+    // End of the last complete record
+    private long _end = 0;
+
+    /**
+     * Open a journal and find its keyframes.
+     */
+
+    public Journal(String fileName) throws IOException {
+        _channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        try {
+            _in = new FileAccess.MappedReader(_channel);
+            byte[] header = new byte[HEADER_LENGTH];
+            try {
+                _in.readFully(header, 0, HEADER_LENGTH);
+            } catch (EOFException ex) {
+                throw new IOException("Not a journal");
+            }
+            ByteBuffer h = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (h.get() != MAGIC[i]) {
+                    throw new IOException("Not a journal");
+                }
+            }
+            int version = h.getShort() & 0xffff;
+            if (version > VERSION) {
+                throw new IOException("Journal version " + version + " is newer than " + VERSION);
+            }
+            h.getShort();
+            _size = h.getInt();
+            _keyframeInterval = h.getInt();
+            if (_size < 1 || _size > GenerationSnapshot.MAX_SIZE) {
+                throw new IOException("Bad size " + _size);
+            }
+            scan();
+            if (_keyCount == 0) {
+                throw new IOException("No keyframes");
+            }
+        } catch (IOException ex) {
+            _channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Go through the records once, noting where the
+     * keyframes are and where the last complete record
+     * ends.
+     */
+
+    private void scan() throws IOException {
+        long generation = 0;
+        _end = HEADER_LENGTH;
+        while (true) {
+            long start = _in.getPosition();
+            int type = _in.read();
+            if (type != KEYFRAME && type != STEP && type != EDIT) {
+                // The end of the file, or of what makes sense
+                break;
+            }
+            long length = readVarint(_in);
+            if (length < 0 || length > _in.getLength() - _in.getPosition()) {
+                break;
+            }
+            long next = _in.getPosition() + length;
+            if (type == KEYFRAME) {
+                generation = readVarint(_in);
+                if (_keyCount == _keyGenerations.length) {
+                    _keyGenerations = Arrays.copyOf(_keyGenerations, _keyCount * 2);
+                    _keyOffsets = Arrays.copyOf(_keyOffsets, _keyCount * 2);
+                }
+                _keyGenerations[_keyCount] = generation;
+                _keyOffsets[_keyCount] = start;
+                _keyCount++;
+            } else if (type == STEP) {
+                generation++;
+            }
+            _in.seek(next);
+            _end = next;
+            _lastGeneration = generation;
+        }
+    }
+
+    public int getSize() {
+        return _size;
+    }
+
+    public int getKeyframeInterval() {
+        return _keyframeInterval;
+    }
+
+    public int getKeyframeCount() {
+        return _keyCount;
+    }
+
+    public long getFirstGeneration() {
+        return _keyGenerations[0];
+    }
+
+    public long getLastGeneration() {
+        return _lastGeneration;
+    }
+
+    /**
+     * The board at the given generation, including any
+     * changes made by hand before the step after it.
+     */
+
+    public GenerationSnapshot seek(long generation) throws IOException {
+        if (generation < getFirstGeneration() || generation > _lastGeneration) {
+            throw new IllegalArgumentException("Generation " + generation + " is not between "
+                                               + getFirstGeneration() + " and " + _lastGeneration);
+        }
+
+        // The last keyframe at or before the generation
+        int low = 0;
+        int high = _keyCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (_keyGenerations[mid] <= generation) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        _in.seek(_keyOffsets[low]);
+        _in.read();
+        long length = readVarint(_in);
+        long payloadStart = _in.getPosition();
+        long g = readVarint(_in);
+        long[] bits = readKeyframe((int) (length - (_in.getPosition() - payloadStart)));
+
+        while (_in.getPosition() < _end) {
+            int type = _in.read();
+            length = readVarint(_in);
+            long next = _in.getPosition() + length;
+            if (type == STEP) {
+                if (g == generation) {
+                    break;
+                }
+                applyChanges(bits);
+                g++;
+            } else if (type == EDIT) {
+                applyChanges(bits);
+            }
+            _in.seek(next);
+        }
+        return new GenerationSnapshot(_size, generation, bits);
+    }
+
+    private long[] readKeyframe(int length) throws IOException {
+        byte[] deflated = new byte[length];
+        _in.readFully(deflated, 0, length);
+        long[] bits = new long[GenerationSnapshot.wordCount(_size)];
+        byte[] packed = new byte[bits.length * 8];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            int done = 0;
+            while (done < packed.length) {
+                int n = inflater.inflate(packed, done, packed.length - done);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Keyframe is cut short");
+                }
+                done += n;
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Keyframe is damaged: " + ex.getMessage());
+        } finally {
+            inflater.end();
+        }
+        ByteBuffer.wrap(packed).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(bits);
+        return bits;
+    }
+
+    /**
+     * Read the changes in a step or edit record and apply
+     * them to packed cells.  Throws an IOException if they
+     * go outside the board.
+     */
+
+    private void applyChanges(long[] bits) throws IOException {
+        long births = readVarint(_in);
+        long deaths = readVarint(_in);
+        if (births < 0 || deaths < 0) {
+            throw new IOException("Changes are cut short");
+        }
+        long index = -1;
+        for (long i = 0; i < births; i++) {
+            index = nextIndex(index);
+            bits[(int) (index >>> 6)] |= 1L << (index & 63);
+        }
+        index = -1;
+        for (long i = 0; i < deaths; i++) {
+            index = nextIndex(index);
+            bits[(int) (index >>> 6)] &= ~(1L << (index & 63));
+        }
+    }
+
+    /**
+     * Read the gap to the next changed cell and return its
+     * index, which is checked to be on the board.
+     */
+
+    private long nextIndex(long index) throws IOException {
+        long gap = readVarint(_in);
+        if (gap < 0) {
+            throw new IOException("Changes are cut short");
+        }
+        long next = index + gap + 1;
+        if (next <= index || next >= (long) _size * _size) {
+            throw new IOException("Changed cell " + next + " is not on the " + _size + "x" + _size + " board");
+        }
+        return next;
+    }
+
+    public void close() throws IOException {
+        _channel.close();
+    }
+
+    /**
+     * Read a varint, or return -1 if the file ends in the
+     * middle of it.
+     */
+
+    private static long readVarint(FileAccess.MappedReader in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                return -1;
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Bad varint");
+    }
+
+    /**
+     * A growable array of bytes that varints are written
+     * into.
+     */
+
+    static class Bytes {
+
+        private byte[] _bytes = new byte[256];
+        private int _length = 0;
+
+        public void clear() {
+            _length = 0;
+        }
+
+        public int length() {
+            return _length;
+        }
+
+        public byte[] array() {
+            return _bytes;
+        }
+
+        private void ensure(int extra) {
+            if (_length + extra > _bytes.length) {
+                _bytes = Arrays.copyOf(_bytes, Math.max(_bytes.length * 2, _length + extra));
+            }
+        }
+
+        public void writeByte(int b) {
+            ensure(1);
+            _bytes[_length++] = (byte) b;
+        }
+
+        public void writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                _bytes[_length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            _bytes[_length++] = (byte) value;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, _bytes, _length, len);
+            _length += len;
+        }
+
+    }
+
+    /**
+     * Writes a journal as a run goes.  Records are put
+     * together in memory and written in big blocks, so
+     * recording a generation is usually just encoding its
+     * changes.  Keyframes are packed and deflated on the
+     * recording thread, every so many generations.
+     */
+
+    public static class Recorder implements Closeable {
+
+        // Bytes collected before they are written
+        private static final int BLOCK = 1 << 20;
+
+        private String _fileName;
+        private FileChannel _channel;
+        private ByteBuffer _block = ByteBuffer.allocate(BLOCK);
+        private int _size = 0;
+        private int _keyframeInterval = 0;
+        private int _stepsSinceKeyframe = 0;
+
+        // Reused for each record
+        private Bytes _record = new Bytes();
+        private Bytes _header = new Bytes();
+        private int[] _sorted = new int[64];
+
+        /**
+         * Start a new journal (replacing any file of the
+         * same name) with a keyframe of the board at the
+         * given generation.
+         */
+
+        public Recorder(String fileName, CellGrid grid, long generation, int keyframeInterval) throws IOException {
+            if (keyframeInterval < 1) {
+                throw new IllegalArgumentException("Keyframe interval must be a positive integer");
+            }
+            _fileName = fileName;
+            _size = grid.getSize();
+            _keyframeInterval = keyframeInterval;
+            _channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            _block.order(ByteOrder.LITTLE_ENDIAN);
+            _block.put(MAGIC);
+            _block.putShort((short) VERSION);
+            _block.putShort((short) 0);
+            _block.putInt(_size);
+            _block.putInt(keyframeInterval);
+            keyframe(grid, generation);
+        }
+
+        public String getFileName() {
+            return _fileName;
+        }
+
+        /**
+         * Record a step, which made the given changes and led
+         * to the given generation of the board.
+         */
+
+        public void recordStep(ChangeSet changes, CellGrid after, long generation) throws IOException {
+            encodeChanges(changes);
+            append(STEP);
+            if (++_stepsSinceKeyframe >= _keyframeInterval) {
+                keyframe(after, generation);
+            }
+        }
+
+        /**
+         * Record changes made by hand.
+         */
+
+        public void recordEdit(ChangeSet changes) throws IOException {
+            encodeChanges(changes);
+            append(EDIT);
+        }
+
+        private void keyframe(CellGrid grid, long generation) throws IOException {
+            GenerationSnapshot snapshot = (grid instanceof GenerationSnapshot)
+                ? (GenerationSnapshot) grid : new GenerationSnapshot(grid, generation);
+            long[] bits = snapshot.bits();
+            ByteBuffer packed = ByteBuffer.allocate(bits.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+            packed.asLongBuffer().put(bits);
+
+            _record.clear();
+            _record.writeVarint(generation);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(packed.array());
+                deflater.finish();
+                byte[] out = new byte[1 << 16];
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(out);
+                    _record.write(out, 0, n);
+                }
+            } finally {
+                deflater.end();
+            }
+            append(KEYFRAME);
+            _stepsSinceKeyframe = 0;
+        }
+
+        private void encodeChanges(ChangeSet changes) {
+            _record.clear();
+            _record.writeVarint(changes.getBirthCount());
+            _record.writeVarint(changes.getDeathCount());
+            int n = changes.getBirthCount();
+            if (_sorted.length < n) {
+                _sorted = new int[Math.max(n, _sorted.length * 2)];
+            }
+            for (int i = 0; i < n; i++) {
+                _sorted[i] = changes.getBirth(i);
+            }
+            encodeIndexes(n);
+            n = changes.getDeathCount();
+            if (_sorted.length < n) {
+                _sorted = new int[Math.max(n, _sorted.length * 2)];
+            }
+            for (int i = 0; i < n; i++) {
+                _sorted[i] = changes.getDeath(i);
+            }
+            encodeIndexes(n);
+        }
+
+        private void encodeIndexes(int n) {
+            Arrays.sort(_sorted, 0, n);
+            int previous = -1;
+            for (int i = 0; i < n; i++) {
+                _record.writeVarint(_sorted[i] - previous - 1);
+                previous = _sorted[i];
+            }
+        }
+
+        /**
+         * Add the record in _record, with its type and
+         * length in front.
+         */
+
+        private void append(int type) throws IOException {
+            _header.clear();
+            _header.writeByte(type);
+            _header.writeVarint(_record.length());
+            put(_header);
+            put(_record);
+        }
+
+        private void put(Bytes bytes) throws IOException {
+            if (bytes.length() > _block.remaining()) {
+                flush();
+            }
+            if (bytes.length() > _block.remaining()) {
+                writeFully(ByteBuffer.wrap(bytes.array(), 0, bytes.length()));
+            } else {
+                _block.put(bytes.array(), 0, bytes.length());
+            }
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                _channel.write(buffer);
+            }
+        }
+
+        /**
+         * Hand everything recorded so far to the operating
+         * system.
+         */
+
+        public void flush() throws IOException {
+            _block.flip();
+            writeFully(_block);
+            _block.clear();
+        }
+
+        /**
+         * Write out everything, force it to disk and close
+         * the journal.
+         */
+
+        public void close() throws IOException {
+            try {
+                flush();
+                _channel.force(false);
+            } finally {
+                _channel.close();
+            }
+        }
+
+    }
+
+    private static void showErrorMessage() {
+        System.out.println("Usage: java Journal <journal> [<generation> [<output file>]]");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 3) {
+            showErrorMessage();
+        }
+        long generation = -1;
+        if (args.length > 1) {
+            try {
+                generation = Long.parseLong(args[1]);
+            } catch (NumberFormatException ex) {
+                showErrorMessage();
+            }
+        }
+
+        try {
+            Journal journal = new Journal(args[0]);
+            try {
+                if (generation < 0) {
+                    System.out.println(journal.getSize() + "x" + journal.getSize() + " board, generations "
+                                       + journal.getFirstGeneration() + " to " + journal.getLastGeneration()
+                                       + ", " + journal.getKeyframeCount() + " keyframes every "
+                                       + journal.getKeyframeInterval() + " generations");
+                } else if (generation < journal.getFirstGeneration() || generation > journal.getLastGeneration()) {
+                    System.out.println("Generation " + generation + " is not in the journal");
+                    System.exit(1);
+                } else {
+                    GenerationSnapshot grid = journal.seek(generation);
+                    if (args.length > 2) {
+                        FileAccess.save(args[2], grid, null);
+                    } else {
+                        Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+                        FileAccess.writeGrid(grid, out);
+                        out.flush();
+                    }
+                }
+            } finally {
+                journal.close();
+            }
+        } catch (IOException ex) {
+            System.out.println("COULD NOT READ JOURNAL " + args[0] + ": " + ex.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+}
@@ -0,0 +1,21 @@
+/**
+ * Something that can hold a square Game of Life grid on a
+ * torus and advance it one generation at a time.  Rows and
+ * columns are numbered the same way as MainPanel's cells.
+ */
+
+public interface LifeEngine extends CellGrid, WritableGrid {
+
+    /**
+     * Compute the next generation.
+     */
+
+    public void step();
+
+    /**
+     * Kill every cell.
+     */
+
+    public void clear();
+
+}
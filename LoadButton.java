@@ -1,7 +1,9 @@
 import java.awt.*;
 import javax.swing.*;
 import java.awt.event.*;
+import java.io.*;
 import java.util.*;
+import java.util.function.*;
 
 public class LoadButton extends JButton {
 
@@ -16,9 +18,23 @@ public class LoadButton extends JButton {
     class LoadButtonListener implements ActionListener {
 
 	public void actionPerformed(ActionEvent e) {
-	    String fileName = "backup.txt";
-	    ArrayList<String> info = FileAccess.loadFile(fileName);
-	    _m.load(info);
+	    final Component source = (Component) e.getSource();
+	    final String fileName = FileAccess.DEFAULT_FILE;
+
+	    // Read in the background, then put on the board
+	    // here on the Swing thread.  During a run load()
+	    // hands it to the simulation thread instead of
+	    // changing the kernel under it.
+	    FileTask<GenerationSnapshot> task = FileTask.read(fileName, _m.getCellsSize());
+	    task.monitor(source, "Loading " + fileName, new BiConsumer<GenerationSnapshot, Throwable>() {
+		    public void accept(GenerationSnapshot grid, Throwable failure) {
+			if (failure != null) {
+			    JOptionPane.showMessageDialog(source, "COULD NOT LOAD FILE " + fileName + ": " + failure.getMessage(), "BROUGHT TO YOU BY BILL LABOON", JOptionPane.WARNING_MESSAGE);
+			} else {
+			    _m.load(grid);
+			}
+		    }
+		});
 	}
     }    
     
@@ -0,0 +1,181 @@
+import java.util.*;
+
+
+/**
+ * A set of longs with no boxing.  Keys are kept in one array
+ * using open addressing with linear probing, and the slots can
+ * be walked directly with capacity(), isUsed() and keyAt(), so
+ * going through the set does not allocate either.
+ */
+
+public class LongHashSet {
+
+    private long[] _keys;
+    private boolean[] _used;
+    private int _mask;
+    private int _size = 0;
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    public LongHashSet(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2) {
+            capacity *= 2;
+        }
+        _keys = new long[capacity];
+        _used = new boolean[capacity];
+        _mask = capacity - 1;
+    }
+
+    /**
+     * Spread the bits of a key so that nearby coordinates
+     * do not end up in nearby slots.
+     */
+
+    static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    public boolean contains(long key) {
+        int i = hash(key) & _mask;
+        while (_used[i]) {
+            if (_keys[i] == key) {
+                return true;
+            }
+            i = (i + 1) & _mask;
+        }
+        return false;
+    }
+
+    /**
+     * Add a key, and return true if it was not already
+     * in the set.
+     */
+
+    public boolean add(long key) {
+        if (_size * 2 >= _keys.length) {
+            resize(_keys.length * 2);
+        }
+        int i = hash(key) & _mask;
+        while (_used[i]) {
+            if (_keys[i] == key) {
+                return false;
+            }
+            i = (i + 1) & _mask;
+        }
+        _keys[i] = key;
+        _used[i] = true;
+        _size++;
+        return true;
+    }
+
+    /**
+     * Remove a key, and return true if it was in the set.
+     * The keys after it in the same run are shifted back,
+     * so lookups never need tombstones.
+     */
+
+    public boolean remove(long key) {
+        int i = hash(key) & _mask;
+        while (_used[i]) {
+            if (_keys[i] == key) {
+                shiftBack(i);
+                _size--;
+                return true;
+            }
+            i = (i + 1) & _mask;
+        }
+        return false;
+    }
+
+    private void shiftBack(int hole) {
+        int i = hole;
+        while (true) {
+            i = (i + 1) & _mask;
+            if (!_used[i]) {
+                break;
+            }
+            int home = hash(_keys[i]) & _mask;
+            // Move the key into the hole unless its home slot
+            // lies (cyclically) between the hole and where it is.
+            boolean stays = (hole <= i) ? (hole < home && home <= i) : (hole < home || home <= i);
+            if (!stays) {
+                _keys[hole] = _keys[i];
+                hole = i;
+            }
+        }
+        _used[hole] = false;
+    }
+
+    public void clear() {
+        Arrays.fill(_used, false);
+        _size = 0;
+    }
+
+    /**
+     * Remove every key, and make the table smaller if it
+     * is much bigger than the expected number of keys
+     * needs, so that going through the slots does not
+     * stay slow after the set was once big.
+     */
+
+    public void clear(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2) {
+            capacity *= 2;
+        }
+        if (_keys.length > capacity * 4) {
+            _keys = new long[capacity];
+            _used = new boolean[capacity];
+            _mask = capacity - 1;
+            _size = 0;
+        } else {
+            clear();
+        }
+    }
+
+    private void resize(int capacity) {
+        long[] keys = _keys;
+        boolean[] used = _used;
+        _keys = new long[capacity];
+        _used = new boolean[capacity];
+        _mask = capacity - 1;
+        for (int j = 0; j < keys.length; j++) {
+            if (used[j]) {
+                int i = hash(keys[j]) & _mask;
+                while (_used[i]) {
+                    i = (i + 1) & _mask;
+                }
+                _keys[i] = keys[j];
+                _used[i] = true;
+            }
+        }
+    }
+
+    /**
+     * The number of slots.  Use isUsed() and keyAt() to go
+     * through the keys.
+     */
+
+    public int capacity() {
+        return _keys.length;
+    }
+
+    public boolean isUsed(int slot) {
+        return _used[slot];
+    }
+
+    public long keyAt(int slot) {
+        return _keys[slot];
+    }
+
+}
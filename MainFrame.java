@@ -1,5 +1,6 @@
 import java.awt.*;
 import javax.swing.*;
+import java.io.*;
 
 public class MainFrame {
 
@@ -13,6 +14,19 @@ public class MainFrame {
     private ButtonPanel _buttonPanel;
     
     public MainFrame(int size) {
+	this(size, 1);
+    }
+
+    public MainFrame(int size, int threads) {
+	this(size, threads, false);
+    }
+
+    /**
+     * Create the window.  If canvas is true the grid is
+     * drawn on a single canvas instead of with buttons.
+     */
+
+    public MainFrame(int size, int threads, boolean canvas) {
 
 	_frame.setSize(WIDTH, HEIGHT);
 	// Close program when window is closed
@@ -20,7 +34,33 @@ public class MainFrame {
 	
 	// Add Main Panel and Button Panel
 	
-	_mainPanel = new MainPanel(size);
+	_mainPanel = new MainPanel(size, threads, canvas);
+
+	// Pick up where a run that was checkpointing left off
+	
+	if (_mainPanel.resume()) {
+	    System.out.println("Resumed from the checkpoint at generation " + _mainPanel.getGeneration());
+	}
+
+	// Record a journal of the run if asked to, making
+	// sure it is closed when the program exits, once a
+	// run going on has recorded its last generation
+
+	String journal = System.getProperty("gameoflife.journal");
+	if (journal != null) {
+	    try {
+		_mainPanel.startRecording(journal, Integer.getInteger("gameoflife.journal.keyframes",
+								      Journal.DEFAULT_KEYFRAME_INTERVAL));
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+			    _mainPanel.stopAndWait();
+			    _mainPanel.stopRecording();
+			}
+		    });
+	    } catch (IOException ioex) {
+		System.out.println("COULD NOT RECORD TO " + journal + ": " + ioex.getMessage());
+	    }
+	}
 
 	_buttonPanel = new ButtonPanel(_mainPanel);
 	
@@ -1,20 +1,116 @@
 import java.awt.*;
+import java.awt.event.*;
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
 import javax.swing.*;
 import javax.swing.text.NumberFormatter;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 
 public class MainPanel extends JPanel {
 
-    // Current configuration
+    // Current configuration, one button per cell.  This is
+    // null when the panel draws the grid on a GridCanvas.
     private Cell[][] _cells;
 
-    // Backup configuration
+    // Draws the grid in canvas mode, otherwise null
+    private GridCanvas _canvas;
+
+    // Backup configuration: the grid as it was before the
+    // newest change in _history
     private boolean[][] _backupCells;
 
+    // Every change to the grid, for undo and redo
+    private History _history;
+
+    // Cells changed by hand (clicks, loads, clears), before
+    // they are recorded in _history
+    private ChangeSet _editChanges = new ChangeSet();
+
+    // The kernel that computes each generation.  It is the
+    // real state of the grid; the cells or canvas show it.
+    // If _cellsDirty is set, the cells were handed in or out
+    // with setCells()/getCells() and may have been changed
+    // behind the kernel's back.
+    private DenseKernel _kernel;
+
+    private volatile boolean _cellsDirty = true;
+
+    // Key of the client property holding each of our own
+    // cells' row * size + column
+    private static final String CELL_INDEX = "cellIndex";
+
     private int _size = 0;
 
-    private boolean _running = false;
+    private volatile boolean _running = false;
+
+    // Held by runContinuous() from when it starts stepping
+    // until its last generation is recorded, so that
+    // stopAndWait() can wait for it
+    private final Object _stepLock = new Object();
+
+    // Number of generations computed so far
+    private long _generation = 0;
+
+    // Changes by hand made while running (clicks, clears
+    // and loads), waiting in order for the simulation thread
+    // to apply them between generations
+    private ConcurrentLinkedQueue<Edit> _edits = new ConcurrentLinkedQueue<Edit>();
+
+    // Number of new boards in _edits.  Until the simulation
+    // thread has put them in the kernel, the generations it
+    // hands over are of the old board and are not drawn.
+    private AtomicInteger _pendingBoards = new AtomicInteger();
+
+    // While running, the newest generation that has not
+    // been drawn yet.  The simulation thread only makes a
+    // new snapshot once the last one has been taken, so
+    // generations in between are skipped, not queued.
+    private AtomicReference<GenerationSnapshot> _latest = new AtomicReference<GenerationSnapshot>();
+
+    // While running, the generation currently on the
+    // screen, so each frame only has to draw what changed
+    // since then.  Only used on the Swing thread once the
+    // run has started.
+    private volatile GenerationSnapshot _shown;
+
+    // Changes made by one step, and changes between two
+    // frames.  Kept so the display does not allocate.
+    private ChangeSet _stepChanges = new ChangeSet();
+    private ChangeSet _frameChanges = new ChangeSet();
+
+    /**
+     * What runContinuous() does once the board has settled
+     * into a cycle (including an empty board or a still
+     * life): carry on as fast as before, slow down to one
+     * generation per frame, or stop.
+     */
+
+    public enum CycleAction { KEEP_RUNNING, THROTTLE, STOP }
+
+    private volatile CycleAction _onCycle = CycleAction.THROTTLE;
+
+    // Watches for cycles while running continuously
+    private CycleDetector _cycles = new CycleDetector(CycleDetector.DEFAULT_HISTORY);
+
+    // Records every change to a journal, or null if not
+    // recording
+    private Journal.Recorder _recorder;
+
+    // Saves checkpoints while running continuously, or
+    // null if they are turned off
+    private volatile Checkpointer _checkpointer = Checkpointer.fromProperties();
+
+    // Timings and counts, recorded only if Metrics.ENABLED
+    private Metrics _metrics = new Metrics();
+
+    // Draws _latest on the Swing thread while running
+    private javax.swing.Timer _renderTimer;
+
+    // Most frames per second drawn while running
+    public static final int FRAMES_PER_SECOND = 30;
 
     public int getCellsSize() {
         return _size;
@@ -22,97 +118,260 @@ public class MainPanel extends JPanel {
 
     public void setCells(Cell[][] cells) {
         _cells = cells;
+        _cellsDirty = true;
     }
 
+    /**
+     * Get the Cell buttons, or null in canvas mode.
+     */
+
     public Cell[][] getCells() {
+        // The caller may change the cells directly.
+        _cellsDirty = true;
         return _cells;
     }
 
+    public boolean isCanvasMode() {
+        return _canvas != null;
+    }
+
+    /**
+     * The number of generations computed so far.
+     */
+
+    public long getGeneration() {
+        return _generation;
+    }
+
     private int convertToInt(int x) {
         if(x < 0) throw new NumberFormatException();
         return x;
     }
 
-    private int getNumNeighbors(int x, int y) {
-        int size = _size;
-        int leftX = (x - 1) % size;
-        int rightX = (x + 1) % size;
-        int upY = (y - 1) % size;
-        int downY = (y + 1) % size;
+    /**
+     * If the cells may have been changed from outside
+     * (replaced with setCells() or handed out by
+     * getCells()), copy them into the kernel.  This is
+     * never done during a run, when the cells lag behind
+     * the kernel.
+     */
 
-        if (leftX == -1) {
-            leftX = size - 1;
-        }
-        if (rightX == -1) {
-            rightX = size - 1;
-        }
-        if (upY == -1) {
-            upY = size - 1;
-        }
-        if (downY == -1) {
-            downY = size - 1;
+    private void syncKernel() {
+        if (_cellsDirty && _cells != null && !_running) {
+            _cellsDirty = false;
+            _editChanges.clear();
+            for (int j = 0; j < _size; j++) {
+                for (int k = 0; k < _size; k++) {
+                    setKernelCell(j, k, _cells[j][k].getAlive(), _editChanges);
+                }
+            }
+            recordChanges(_editChanges, false);
         }
+    }
 
-        int numNeighbors = 0;
+    /**
+     * Set one cell of the kernel, and add it to changes
+     * if that changed it.
+     */
 
-        if (_cells[leftX][upY].getAlive()) {
-            numNeighbors++;
-        }
-        if (_cells[leftX][downY].getAlive()) {
-            numNeighbors++;
+    private void setKernelCell(int row, int col, boolean alive, ChangeSet changes) {
+        if (_kernel.getAlive(row, col) != alive) {
+            _kernel.setAlive(row, col, alive);
+            if (alive) {
+                changes.addBirth(row * _size + col);
+            } else {
+                changes.addDeath(row * _size + col);
+            }
         }
-        if (_cells[leftX][y].getAlive()) {
-            numNeighbors++;
+    }
+
+    /**
+     * Add a change that has just been made to the kernel
+     * to the history.  The backup cells catch up with the
+     * change before it, so they always hold the grid as it
+     * was before this one.  Changes by hand that did not
+     * change anything are left out.
+     */
+
+    private void recordChanges(ChangeSet changes, boolean step) {
+        if (changes.size() == 0 && !step) {
+            return;
         }
-        if (_cells[rightX][upY].getAlive()) {
-            numNeighbors++;
+        _history.applyTop(_backupCells, true);
+        _history.record(changes, step, _kernel, _generation);
+        if (_recorder != null) {
+            try {
+                if (step) {
+                    _recorder.recordStep(changes, _kernel, _generation);
+                } else {
+                    _recorder.recordEdit(changes);
+                }
+            } catch (IOException ex) {
+                System.err.println("Stopped recording to " + _recorder.getFileName() + ": " + ex.getMessage());
+                stopRecording();
+            }
         }
-        if (_cells[rightX][downY].getAlive()) {
-            numNeighbors++;
+    }
+
+    /**
+     * Apply the changes by hand made during a run to the
+     * kernel, and return whether there were any.
+     */
+
+    private boolean applyEdits() {
+        boolean applied = false;
+        Edit edit;
+        _editChanges.clear();
+        while ((edit = _edits.poll()) != null) {
+            if (edit._board == null) {
+                setKernelCell(edit._row, edit._col, edit._alive, _editChanges);
+            } else {
+                // A new board is recorded on its own, since
+                // it can change the cells clicked before it
+                recordChanges(_editChanges, false);
+                setKernel(edit._board, _editChanges);
+                recordChanges(_editChanges, false);
+                _editChanges.clear();
+                _latest.set(null);
+                _pendingBoards.decrementAndGet();
+            }
+            applied = true;
         }
-        if (_cells[rightX][y].getAlive()) {
-            numNeighbors++;
+        recordChanges(_editChanges, false);
+        return applied;
+    }
+
+    /**
+     * Make the kernel the given board, putting the cells
+     * that changed in changes.
+     */
+
+    private void setKernel(GenerationSnapshot board, ChangeSet changes) {
+        board.diff(new GenerationSnapshot(_kernel, _generation), changes);
+        for (int i = 0; i < changes.getBirthCount(); i++) {
+            int index = changes.getBirth(i);
+            _kernel.setAlive(index / _size, index % _size, true);
         }
-        if (_cells[x][upY].getAlive()) {
-            numNeighbors++;
+        for (int i = 0; i < changes.getDeathCount(); i++) {
+            int index = changes.getDeath(i);
+            _kernel.setAlive(index / _size, index % _size, false);
         }
-        if (_cells[x][downY].getAlive()) {
-            numNeighbors++;
+    }
+
+    /**
+     * During a run, hand a new board to the simulation
+     * thread to put in the kernel before its next
+     * generation.  It is what the screen shows from now
+     * on, so the next frame is drawn as changes from it.
+     * Must be called on the Swing thread.
+     */
+
+    private void replaceWhileRunning(GenerationSnapshot board) {
+        GenerationSnapshot shown = _shown;
+        if (shown != null) {
+            board = new GenerationSnapshot(_size, shown.getGeneration(), board.bits());
         }
+        _pendingBoards.incrementAndGet();
+        _edits.add(new Edit(board));
+        _shown = board;
+    }
 
-        return convertToInt(numNeighbors);
+    /**
+     * Show the kernel's current generation on the cells.
+     */
 
+    private void displayIteration() {
+        displayIteration(_kernel);
     }
 
-    private boolean iterateCell(int x, int y) {
-        boolean toReturn = false;
-        boolean alive = _cells[x][y].getAlive();
-        int numNeighbors = getNumNeighbors(x, y);
-        if (alive) {
-            if (numNeighbors < 2 || numNeighbors > 3) {
-                toReturn = false;
-            } else {
-                toReturn = true;
+    /**
+     * Show a generation on the cells or the canvas.  This
+     * changes Swing components, so it must only be called
+     * on the Swing thread, or when nothing is running.
+     */
+
+    private void displayIteration(CellGrid grid) {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        if (_canvas != null) {
+            _canvas.update(grid);
+        } else {
+            for (int j = 0; j < _size; j++) {
+                for (int k = 0; k < _size; k++) {
+                    _cells[j][k].setAlive(grid.getAlive(j, k));
+                }
             }
+        }
+        setVisible(true);
+        if (Metrics.ENABLED) {
+            _metrics.recordDisplay(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Show only the cells that changed.  Each Cell repaints
+     * itself, and Swing merges all of those repaints into
+     * one; the canvas repaints just the region around the
+     * changes.  Same threading rules as displayIteration().
+     */
+
+    private void displayChanges(ChangeSet changes) {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        if (_canvas != null) {
+            _canvas.update(changes);
         } else {
-            if (numNeighbors == 3) {
-                toReturn = true;
-            } else {
-                toReturn = false;
+            for (int i = 0; i < changes.getBirthCount(); i++) {
+                int index = changes.getBirth(i);
+                _cells[index / _size][index % _size].setAlive(true);
+            }
+            for (int i = 0; i < changes.getDeathCount(); i++) {
+                int index = changes.getDeath(i);
+                _cells[index / _size][index % _size].setAlive(false);
             }
         }
-        return toReturn;
+        setVisible(true);
+        if (Metrics.ENABLED) {
+            _metrics.recordDisplay(System.nanoTime() - start);
+        }
+    }
 
+    /**
+     * Show the kernel's current generation, waiting for
+     * the Swing thread to do it if need be.
+     */
+
+    private void displayOnSwingThread() {
+        if (SwingUtilities.isEventDispatchThread()) {
+            displayIteration();
+            return;
+        }
+        try {
+            SwingUtilities.invokeAndWait(new Runnable() {
+                public void run() {
+                    displayIteration();
+                }
+            });
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (InvocationTargetException ex) {
+            throw new RuntimeException(ex.getCause());
+        }
     }
 
+    /**
+     * Replace the current generation with the given
+     * one and display it.
+     */
+
     private void displayIteration(boolean[][] nextIter) {
-        System.out.println("\tDisplaying...");
+        _editChanges.clear();
         for (int j = 0; j < _size; j++) {
             for (int k = 0; k < _size; k++) {
-                _cells[j][k].setAlive(nextIter[j][k]);
+                setKernelCell(j, k, nextIter[j][k], _editChanges);
             }
         }
-        setVisible(true);
+        _cellsDirty = false;
+        recordChanges(_editChanges, false);
+        displayIteration();
     }
 
     /**
@@ -121,26 +380,45 @@ public class MainPanel extends JPanel {
      */
 
     private void calculateNextIteration() {
-        System.out.println("\tCalculating..");
-        boolean[][] nextIter = new boolean[_size][_size];
-        for (int j = 0; j < _size; j++) {
-            for (int k = 0; k < _size; k++) {
-                nextIter[j][k] = iterateCell(j, k);
-            }
-        }
+        stepKernel();
+        displayChanges(_stepChanges);
+    }
+
+    /**
+     * Compute the next generation in the kernel only, and
+     * put the cells that changed in _stepChanges.  Clicks
+     * made during a run break the chain of generations the
+     * cycle detector follows, so it starts over after them.
+     */
 
-        displayIteration(nextIter);
+    private void stepKernel() {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        syncKernel();
+        if (applyEdits() && _running) {
+            _cycles.reset(_kernel, _generation);
+        }
+        _kernel.step();
+        _generation++;
+        _kernel.getChanges(_stepChanges);
+        recordChanges(_stepChanges, true);
+        if (Metrics.ENABLED) {
+            _metrics.recordStep(start, System.nanoTime() - start,
+                                _stepChanges.getBirthCount(), _stepChanges.getDeathCount());
+        }
     }
 
     /**
      * Make a copy of the current cells and put
-     * the copy in the backup cells.
+     * the copy in the backup cells.  Running no
+     * longer needs this, since the history keeps
+     * the backup cells up to date as it goes.
      */
 
     public void backup() {
+        syncKernel();
         for (int j = 0; j < _size; j++) {
             for (int k = 0; k < _size; k++) {
-                _backupCells[j][k] = _cells[j][k].getAlive();
+                _backupCells[j][k] = _kernel.getAlive(j, k);
             }
         }
     }
@@ -171,10 +449,11 @@ public class MainPanel extends JPanel {
 
             System.out.println("Current cells:");
 
+            syncKernel();
             for (int j = 0; j < _size; j++) {
                 for (int k = 0; k < _size; k++) {
 
-                    if (_cells[j][k].getAlive()) {
+                    if (_kernel.getAlive(j, k)) {
                         System.out.print("X");
                     } else {
                         System.out.print(".");
@@ -196,24 +475,34 @@ public class MainPanel extends JPanel {
 
     public String toString() {
 
-        // Loop through all of the cells, and
-        // if they are alive, add an "X" to
-        // the String, if dead, a ".".
+        // Every cell is one character, 'X' if it
+        // is alive and '.' if it is dead, plus a
+        // newline at the end of each row.
 
-        String toWrite = "";
+        syncKernel();
+        StringWriter out = new StringWriter(_size * (_size + 1));
+        try {
+            FileAccess.writeGrid(_kernel, out);
+        } catch (IOException ex) {
+            // A StringWriter never throws
+            throw new RuntimeException(ex);
+        }
+        return out.toString();
+    }
 
-        for (int j = 0; j < _size; j++) {
-            for (int k = 0; k < _size; k++) {
-                if (_cells[j][k].getAlive()) {
-                    toWrite += _cells[j][k].toString();
-                } else {
-                    toWrite += _cells[j][k].toString();
-                }
+    /**
+     * A copy of the current generation, for saving.
+     * While running, this is the generation on the
+     * screen, since the kernel is changing under us.
+     */
 
-            }
-            toWrite += "\n";
+    public GenerationSnapshot snapshot() {
+        GenerationSnapshot shown = _shown;
+        if (_running && shown != null) {
+            return shown;
         }
-        return toWrite;
+        syncKernel();
+        return new GenerationSnapshot(_kernel, _generation);
     }
 
     /**
@@ -221,23 +510,199 @@ public class MainPanel extends JPanel {
      */
 
     public void run() {
-        backup();
         calculateNextIteration();
     }
 
     /**
      * Run the system continuously.
+     *
+     * Generations are computed as fast as possible on the
+     * calling thread and never drawn from it.  Now and then
+     * a snapshot is handed to the render timer, which draws
+     * it on the Swing thread at up to FRAMES_PER_SECOND.
+     * When the run stops, the final generation is drawn
+     * before this returns.
+     *
+     * Once the board settles into a cycle, what happens
+     * next depends on setCycleAction().
      */
 
     public void runContinuous() {
-        _running = true;
+        syncKernel();
+        _shown = new GenerationSnapshot(_kernel, _generation);
+        _cycles.reset(_kernel, _generation);
+        Checkpointer checkpointer = _checkpointer;
+        if (checkpointer != null) {
+            checkpointer.reset(_generation);
+        }
+        if (Metrics.ENABLED) {
+            _metrics.reset();
+        }
+        synchronized (_stepLock) {
+            _running = true;
+            _renderTimer.start();
+            stepUntilStopped(checkpointer);
+            _renderTimer.stop();
+            applyEdits();
+            flushRecording();
+        }
+        _latest.set(null);
+        _shown = null;
+        displayOnSwingThread();
+        if (Metrics.ENABLED) {
+            System.out.println(_metrics.summary());
+        }
+    }
+
+    /**
+     * The loop of runContinuous(), which steps until the
+     * run is stopped or reaches a cycle it stops at.
+     */
+
+    private void stepUntilStopped(Checkpointer checkpointer) {
         while (_running) {
-            System.out.println("Running...");
-            backup();
-            calculateNextIteration();
+            stepKernel();
+            if (checkpointer != null) {
+                checkpointer.offer(_kernel, _generation);
+            }
+            if (_latest.get() == null) {
+                _latest.set(new GenerationSnapshot(_kernel, _generation));
+            }
+            if (_cycles.update(_stepChanges, _generation)) {
+                if (Metrics.ENABLED) {
+                    _metrics.recordCycle(_cycles.getPeriod(), _cycles.getCycleStart());
+                }
+                if (_onCycle == CycleAction.STOP) {
+                    _running = false;
+                }
+            }
+            if (_cycles.getPeriod() > 0 && _onCycle == CycleAction.THROTTLE) {
+                try {
+                    Thread.sleep(1000 / FRAMES_PER_SECOND);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    _running = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Choose what runContinuous() does once the board is
+     * in a cycle.  The default is THROTTLE.
+     */
+
+    public void setCycleAction(CycleAction action) {
+        _onCycle = action;
+    }
+
+    /**
+     * Start recording every generation and every change by
+     * hand to a journal (see Journal), with a keyframe every
+     * so many generations.  Any recording already going on
+     * is stopped first.  Must not be called while running.
+     */
+
+    public void startRecording(String fileName, int keyframeInterval) throws IOException {
+        stopRecording();
+        syncKernel();
+        _recorder = new Journal.Recorder(fileName, _kernel, _generation, keyframeInterval);
+    }
+
+    /**
+     * Stop recording and close the journal, if recording.
+     */
+
+    public void stopRecording() {
+        Journal.Recorder recorder = _recorder;
+        _recorder = null;
+        if (recorder != null) {
+            try {
+                recorder.close();
+            } catch (IOException ex) {
+                System.err.println("COULD NOT CLOSE JOURNAL " + recorder.getFileName() + ": " + ex.getMessage());
+            }
         }
     }
 
+    /**
+     * Hand what has been recorded so far to the operating
+     * system, so the journal can be read up to here.
+     */
+
+    private void flushRecording() {
+        if (_recorder != null) {
+            try {
+                _recorder.flush();
+            } catch (IOException ex) {
+                System.err.println("Stopped recording to " + _recorder.getFileName() + ": " + ex.getMessage());
+                stopRecording();
+            }
+        }
+    }
+
+    public boolean isRecording() {
+        return _recorder != null;
+    }
+
+    /**
+     * Save checkpoints with the given Checkpointer while
+     * running continuously, or stop saving them if it is
+     * null.  Takes effect from the next run.
+     */
+
+    public void setCheckpointer(Checkpointer checkpointer) {
+        _checkpointer = checkpointer;
+    }
+
+    public Checkpointer getCheckpointer() {
+        return _checkpointer;
+    }
+
+    /**
+     * Carry on from the newest good checkpoint, if there
+     * is one, and return whether there was.  The board and
+     * the generation count become the checkpoint's.
+     */
+
+    public boolean resume() {
+        Checkpointer checkpointer = _checkpointer;
+        GenerationSnapshot latest = (checkpointer == null) ? null : checkpointer.latest(_size);
+        if (latest == null) {
+            return false;
+        }
+        load(latest);
+        _generation = latest.getGeneration();
+        return true;
+    }
+
+    /**
+     * The period of the cycle the last continuous run
+     * reached, or 0 if it did not reach one.
+     */
+
+    public int getCyclePeriod() {
+        return _cycles.getPeriod();
+    }
+
+    /**
+     * The first generation of the cycle the last
+     * continuous run reached, or -1.
+     */
+
+    public long getCycleStart() {
+        return _cycles.getCycleStart();
+    }
+
+    /**
+     * What has been recorded about stepping and drawing.
+     * Empty unless Metrics.ENABLED is true.
+     */
+
+    public Metrics getMetrics() {
+        return _metrics;
+    }
+
     /**
      * Stop a continuously running system.
      */
@@ -246,6 +711,23 @@ public class MainPanel extends JPanel {
         _running = false;
     }
 
+    /**
+     * Stop a continuous run and wait until it has stepped
+     * its last generation and recorded it.  The run may
+     * still be drawing that generation on the Swing thread
+     * when this returns, so this can be called while the
+     * Swing thread is busy, such as from a shutdown hook
+     * when the window is closed.  Must not be called on
+     * the thread doing the run.
+     */
+
+    public void stopAndWait() {
+        _running = false;
+        synchronized (_stepLock) {
+            // Nothing to do once the run has let go
+        }
+    }
+
 
     /**
      * Convert the array of Cell objects into an
@@ -280,20 +762,142 @@ public class MainPanel extends JPanel {
      */
 
     public void undo() {
-        displayIteration(_backupCells);
+        undo(1);
+    }
+
+    /**
+     * Undo the given number of changes: generations,
+     * clicks, loads or clears.  Does nothing while
+     * running continuously.
+     */
+
+    public void undo(int levels) {
+        if (_running) {
+            return;
+        }
+        syncKernel();
+        int before = _history.getUndoCount();
+        _generation += _history.undo(_kernel, levels);
+        afterHistoryMove(before);
+    }
+
+    /**
+     * Redo one change that was undone.
+     */
+
+    public void redo() {
+        redo(1);
+    }
+
+    /**
+     * Redo the given number of changes that were undone.
+     * Does nothing while running continuously.
+     */
+
+    public void redo(int levels) {
+        if (_running) {
+            return;
+        }
+        syncKernel();
+        int before = _history.getUndoCount();
+        _generation += _history.redo(_kernel, levels);
+        afterHistoryMove(before);
+    }
+
+    public int getUndoCount() {
+        return _history.getUndoCount();
+    }
+
+    public int getRedoCount() {
+        return _history.getRedoCount();
+    }
+
+    /**
+     * After going back or forward in the history, show the
+     * grid and put the backup cells before the newest change
+     * again.  A journal cannot follow the board going back
+     * in time, so if anything moved, recording stops.
+     */
+
+    private void afterHistoryMove(int undoCountBefore) {
+        if (_recorder != null && _history.getUndoCount() != undoCountBefore) {
+            System.err.println("Stopped recording to " + _recorder.getFileName()
+                               + ": the journal cannot follow undo and redo");
+            stopRecording();
+        }
+        for (int j = 0; j < _size; j++) {
+            for (int k = 0; k < _size; k++) {
+                _backupCells[j][k] = _kernel.getAlive(j, k);
+            }
+        }
+        _history.applyTop(_backupCells, false);
+        displayIteration();
+    }
+
+    /**
+     * Toggle a single cell that was clicked on, either a
+     * Cell button or a cell of the canvas.  During a run
+     * the change is shown straight away, and handed to the
+     * simulation thread to apply before its next generation.
+     */
+
+    public void toggleCell(int row, int col) {
+        boolean alive;
+        if (_running) {
+            alive = !((_canvas != null) ? _canvas.getAlive(row, col) : _cells[row][col].getAlive());
+            _edits.add(new Edit(row, col, alive));
+        } else {
+            syncKernel();
+            applyEdits();
+            alive = !_kernel.getAlive(row, col);
+            _editChanges.clear();
+            setKernelCell(row, col, alive, _editChanges);
+            recordChanges(_editChanges, false);
+        }
+
+        if (_canvas != null) {
+            _canvas.setCell(row, col, alive, true);
+            _canvas.repaint();
+        } else {
+            _cells[row][col].resetBeenAlive();
+            _cells[row][col].setAlive(alive);
+        }
     }
 
     /**
      * Loop through the entire array and reset
-     * each of the Cells in the MainPanel.
+     * each of the Cells in the MainPanel.  During a
+     * run the empty board is handed to the simulation
+     * thread, as load() does.
      */
 
     public void clear() {
+        if (_running) {
+            replaceWhileRunning(new GenerationSnapshot(_size, 0, new long[GenerationSnapshot.wordCount(_size)]));
+        }
+        if (_canvas != null) {
+            _canvas.reset();
+        } else {
+            for (int j = 0; j < _size; j++) {
+                for (int k = 0; k < _size; k++) {
+                    _cells[j][k].reset();
+                }
+            }
+        }
+        if (_running) {
+            setVisible(true);
+            return;
+        }
+        syncKernel();
+        applyEdits();
+        _editChanges.clear();
         for (int j = 0; j < _size; j++) {
             for (int k = 0; k < _size; k++) {
-                _cells[j][k].reset();
+                setKernelCell(j, k, false, _editChanges);
             }
         }
+        recordChanges(_editChanges, false);
+        _cellsDirty = false;
         // Need to call setVisible() since
         // we did not do a displayIteration()
         // call.
@@ -308,12 +912,19 @@ public class MainPanel extends JPanel {
     public void load(ArrayList<String> lines) {
         boolean[][] loaded = new boolean[_size][_size];
 
+        // Reset the "been alive" colors
+        if (_canvas != null) {
+            _canvas.reset();
+        }
+
         for (int j = 0; j < _size; j++) {
             String l = lines.get(j);
             for (int k = 0; k < _size; k++) {
 
                 // Reset the "been alive" count
-                _cells[j][k].resetBeenAlive();
+                if (_cells != null) {
+                    _cells[j][k].resetBeenAlive();
+                }
 
                 // For each line, get each character.
                 // If it's a '.', the cell stays
@@ -322,10 +933,8 @@ public class MainPanel extends JPanel {
                 // an 'X' for alive and throw an
                 // error if we get an unexpected char.
                 if (l.charAt(k) == '.') {
-                    _cells[j][k].setAlive(false);
                     loaded[j][k] = false;
                 } else {
-                    _cells[j][k].setAlive(true);
                     loaded[j][k] = true;
                 }
             }
@@ -333,25 +942,191 @@ public class MainPanel extends JPanel {
 
         // Now that we have set the Cells to what
         // we expect, display the iteration.
-        displayIteration(loaded);
+        if (_running) {
+            final boolean[][] cells = loaded;
+            load(new GenerationSnapshot(new CellGrid() {
+                public int getSize() {
+                    return _size;
+                }
+
+                public boolean getAlive(int row, int col) {
+                    return cells[row][col];
+                }
+            }, 0));
+        } else {
+            displayIteration(loaded);
+        }
         // debugPrint();
 
     }
 
 
+    /**
+     * Load a saved configuration straight from a file,
+     * which must be a grid of exactly our size.  If it is
+     * not, an IOException says why and nothing changes.
+     */
+
+    public void load(String fileName) throws IOException {
+        load(FileAccess.readGrid(fileName, _size, null));
+    }
+
+    /**
+     * Replace the board with a grid that has been read
+     * already, such as by a FileTask.  Only the cells that
+     * differ are changed, and the change can be undone.
+     * During a run the grid is shown straight away, and
+     * handed to the simulation thread to put in place
+     * before its next generation, as clicks are.
+     */
+
+    public void load(GenerationSnapshot grid) {
+        if (grid.getSize() != _size) {
+            throw new IllegalArgumentException("Grid is " + grid.getSize() + "x" + grid.getSize()
+                                               + ", expected " + _size + "x" + _size);
+        }
+        if (_running) {
+            replaceWhileRunning(grid);
+        } else {
+            syncKernel();
+            applyEdits();
+            setKernel(grid, _editChanges);
+            recordChanges(_editChanges, false);
+        }
+
+        // Reset the "been alive" colors
+        if (_canvas != null) {
+            _canvas.reset();
+        } else {
+            for (int j = 0; j < _size; j++) {
+                for (int k = 0; k < _size; k++) {
+                    _cells[j][k].resetBeenAlive();
+                }
+            }
+        }
+        displayIteration(_running ? grid : _kernel);
+    }
+
+
     public MainPanel(int size) {
+        this(size, 1);
+    }
+
+    /**
+     * Create a panel whose generations are computed
+     * using the given number of threads.
+     */
+
+    public MainPanel(int size, int threads) {
+        this(size, threads, false);
+    }
+
+    /**
+     * Create a panel whose generations are computed using
+     * the given number of threads.  If canvas is true the
+     * grid is drawn by a single GridCanvas instead of one
+     * Cell button per cell, which starts up and redraws
+     * much faster on big grids.
+     */
+
+    public MainPanel(int size, int threads, boolean canvas) {
         super();
-        _size = size;
+        _size = convertToInt(size);
+        _backupCells = new boolean[size][size];
+        _history = new History(size);
+        _kernel = new DenseKernel(size, threads);
+        _cellsDirty = false;
+        _renderTimer = new javax.swing.Timer(1000 / FRAMES_PER_SECOND, new RenderListener());
+
+        if (canvas) {
+            setLayout(new BorderLayout());
+            _canvas = new GridCanvas(this, size);
+            add(_canvas, BorderLayout.CENTER);
+            return;
+        }
+
         setLayout(new GridLayout(size, size));
         _cells = new Cell[size][size];
-        _backupCells = new boolean[size][size];
+        CellClickListener clickListener = new CellClickListener();
         for (int j = 0; j < size; j++) {
             for (int k = 0; k < size; k++) {
-                _cells[j][k] = new Cell();
+                _cells[j][k] = new Cell(clickListener);
+                _cells[j][k].putClientProperty(CELL_INDEX, j * size + k);
                 this.add(_cells[j][k]);
                 _cells[j][k].setAlive(false);
             }
         }
+        _cellsDirty = false;
+
+    }
+
+    /**
+     * A change by hand made during a run: a click that
+     * sets one cell, or a whole new board from clear() or
+     * load().
+     */
+
+    private static class Edit {
+
+        final int _row;
+        final int _col;
+        final boolean _alive;
+
+        // The new board, or null for a click
+        final GenerationSnapshot _board;
+
+        Edit(int row, int col, boolean alive) {
+            _row = row;
+            _col = col;
+            _alive = alive;
+            _board = null;
+        }
+
+        Edit(GenerationSnapshot board) {
+            _row = 0;
+            _col = 0;
+            _alive = false;
+            _board = board;
+        }
+
+    }
+
+    class CellClickListener implements ActionListener {
+
+        // One listener is shared by all of our cells.  It
+        // finds out which cell was clicked on from the
+        // index stored on it.
+
+        public void actionPerformed(ActionEvent e) {
+            Cell source = (Cell) e.getSource();
+            int index = (Integer) source.getClientProperty(CELL_INDEX);
+            toggleCell(index / _size, index % _size);
+        }
+
+    }
+
+    class RenderListener implements ActionListener {
+
+        // Runs on the Swing thread.  Draw the newest
+        // generation, if there is one we have not drawn,
+        // by changing only the cells that differ from the
+        // one on the screen.
+
+        public void actionPerformed(ActionEvent e) {
+            if (_pendingBoards.get() > 0) {
+                // Still the board from before a clear or load
+                _latest.set(null);
+                return;
+            }
+            GenerationSnapshot latest = _latest.getAndSet(null);
+            GenerationSnapshot shown = _shown;
+            if (latest == null || shown == null) {
+                return;
+            }
+            latest.diff(shown, _frameChanges);
+            displayChanges(_frameChanges);
+            _shown = latest;
+        }
 
     }
 
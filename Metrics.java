@@ -0,0 +1,231 @@
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * Counters and latency histograms for stepping and drawing.
+ *
+ * Recording is turned on with -Dgameoflife.metrics=true.  Every
+ * call site checks ENABLED first, and since it is a constant the
+ * JIT drops those blocks entirely when it is false, so a normal
+ * run does no timing and no counting at all.
+ *
+ * Steps are recorded by the simulation thread and frames by the
+ * Swing thread, so everything is kept in atomics and can be read
+ * from any thread while a run is going on.
+ */
+
+public class Metrics {
+
+    public static final boolean ENABLED = Boolean.getBoolean("gameoflife.metrics");
+
+    private final Histogram _step = new Histogram();
+    private final Histogram _display = new Histogram();
+
+    private final AtomicLong _births = new AtomicLong();
+    private final AtomicLong _deaths = new AtomicLong();
+
+    // System.nanoTime() when the first step recorded since
+    // the last reset() started, and when the last one ended
+    private volatile long _startNanos = 0;
+    private volatile long _endNanos = 0;
+
+    // The cycle the board settled into, if it did
+    private volatile int _cyclePeriod = 0;
+    private volatile long _cycleStart = 0;
+
+    /**
+     * Forget everything recorded so far.
+     */
+
+    public void reset() {
+        _step.reset();
+        _display.reset();
+        _births.set(0);
+        _deaths.set(0);
+        _startNanos = 0;
+        _endNanos = 0;
+        _cyclePeriod = 0;
+        _cycleStart = 0;
+    }
+
+    /**
+     * Record one generation that started at startNanos and
+     * took the given time, and how many cells it changed.
+     */
+
+    public void recordStep(long startNanos, long nanos, int births, int deaths) {
+        if (_step.getCount() == 0) {
+            _startNanos = startNanos;
+        }
+        _step.record(nanos);
+        _births.addAndGet(births);
+        _deaths.addAndGet(deaths);
+        _endNanos = startNanos + nanos;
+    }
+
+    /**
+     * Record the time taken to draw one frame.
+     */
+
+    public void recordDisplay(long nanos) {
+        _display.record(nanos);
+    }
+
+    /**
+     * Record that the board reached a cycle of the given
+     * period, starting at the given generation.
+     */
+
+    public void recordCycle(int period, long start) {
+        _cycleStart = start;
+        _cyclePeriod = period;
+    }
+
+    /**
+     * The period of the cycle the board reached, or 0 if
+     * it has not reached one.
+     */
+
+    public int getCyclePeriod() {
+        return _cyclePeriod;
+    }
+
+    public long getCycleStart() {
+        return _cycleStart;
+    }
+
+    public Histogram getStepLatency() {
+        return _step;
+    }
+
+    public Histogram getDisplayLatency() {
+        return _display;
+    }
+
+    public long getGenerations() {
+        return _step.getCount();
+    }
+
+    /**
+     * Generations per second from the start of the first
+     * step to the end of the last one, including any time
+     * spent between steps.
+     */
+
+    public double getGenerationsPerSecond() {
+        long elapsed = _endNanos - _startNanos;
+        return (elapsed > 0) ? _step.getCount() * 1e9 / elapsed : 0.0;
+    }
+
+    public double getBirthsPerGeneration() {
+        long count = _step.getCount();
+        return (count > 0) ? _births.get() / (double) count : 0.0;
+    }
+
+    public double getDeathsPerGeneration() {
+        long count = _step.getCount();
+        return (count > 0) ? _deaths.get() / (double) count : 0.0;
+    }
+
+    /**
+     * One line describing everything recorded so far.
+     */
+
+    public String summary() {
+        String summary = String.format("%d generations, %.1f generations/sec, "
+                                       + "step %s, display %s (%d frames), "
+                                       + "%.1f births and %.1f deaths per generation",
+                                       getGenerations(), getGenerationsPerSecond(),
+                                       _step, _display, _display.getCount(),
+                                       getBirthsPerGeneration(), getDeathsPerGeneration());
+        if (_cyclePeriod > 0) {
+            summary += String.format(", cycle of period %d from generation %d", _cyclePeriod, _cycleStart);
+        }
+        return summary;
+    }
+
+    /**
+     * A histogram of times in nanoseconds, with one bucket per
+     * power of two.  Recording is a couple of atomic adds, and
+     * percentiles are accurate to within a factor of two.
+     */
+
+    public static class Histogram {
+
+        // Bucket i counts values v with 2^(i-1) <= v < 2^i,
+        // and bucket 0 counts zeros
+        private final AtomicLongArray _buckets = new AtomicLongArray(65);
+
+        private final AtomicLong _count = new AtomicLong();
+        private final AtomicLong _total = new AtomicLong();
+        private final AtomicLong _max = new AtomicLong();
+
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            _buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            _count.incrementAndGet();
+            _total.addAndGet(value);
+            long max = _max.get();
+            while (value > max && !_max.compareAndSet(max, value)) {
+                max = _max.get();
+            }
+        }
+
+        public void reset() {
+            for (int i = 0; i < _buckets.length(); i++) {
+                _buckets.set(i, 0);
+            }
+            _count.set(0);
+            _total.set(0);
+            _max.set(0);
+        }
+
+        public long getCount() {
+            return _count.get();
+        }
+
+        public long getMax() {
+            return _max.get();
+        }
+
+        public double getMean() {
+            long count = _count.get();
+            return (count > 0) ? _total.get() / (double) count : 0.0;
+        }
+
+        /**
+         * An upper bound on the given fraction (0 to 1) of
+         * the recorded values: the top of the bucket that
+         * value falls in.
+         */
+
+        public long getPercentile(double fraction) {
+            long count = _count.get();
+            if (count == 0) {
+                return 0;
+            }
+            long wanted = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < _buckets.length(); i++) {
+                seen += _buckets.get(i);
+                if (seen >= wanted && seen > 0) {
+                    return (i == 0) ? 0 : Math.min(_max.get(), (i == 64) ? Long.MAX_VALUE : (1L << i) - 1);
+                }
+            }
+            return _max.get();
+        }
+
+        /**
+         * The mean, 50th and 99th percentile and max, in
+         * microseconds.
+         */
+
+        public String toString() {
+            return String.format("mean %.1fus p50 %.1fus p99 %.1fus max %.1fus",
+                                 getMean() / 1e3, getPercentile(0.5) / 1e3,
+                                 getPercentile(0.99) / 1e3, getMax() / 1e3);
+        }
+
+    }
+
+}
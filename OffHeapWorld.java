@@ -0,0 +1,484 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+
+/**
+ * A bit-packed grid kept outside the Java heap, for boards too big
+ * for it.  A 65536 square board is 512 MB of cells, which as a
+ * World (four copies) or a DenseKernel (a byte a cell) would need
+ * gigabytes of heap for the garbage collector to look after.
+ *
+ * The cells are packed exactly like the body of an uncompressed
+ * snapshot: cell i (row * size + column) is bit i % 64 of word
+ * i / 64.  The size has to be a multiple of 64, so every row starts
+ * on a word, and it has to be small enough for the grid to fit in
+ * one buffer (under 131072).  The words are either in a direct
+ * buffer (the JVM's -XX:MaxDirectMemorySize has to allow for it) or
+ * in a .snap file mapped into memory.  In the second case the file
+ * is the grid, and flush() is all it takes to save it: the header
+ * gets the generation and CRC, and the operating system writes the
+ * pages that changed.  A mapping is only let go of when the buffer
+ * is garbage collected, so close() does not give the memory back
+ * straight away.
+ *
+ * A generation is written over the one before it, so a mapped file
+ * that is killed while stepping is left damaged.  replacing() maps
+ * a temporary file instead, which only takes the place of the real
+ * one once close() has flushed it, so the real file is always the
+ * old snapshot or the new one.
+ *
+ * A generation is computed in place, a row at a time, with the same
+ * adders as World.  Only the rows around the one being worked out,
+ * the old first row (which the last row needs) and the new row are
+ * copied onto the heap, the old ones with their west and east shifts,
+ * so stepping needs thirteen rows of heap: about 100 KB for a 65536
+ * square board.
+ */
+
+public class OffHeapWorld implements LifeEngine, Closeable {
+
+    private static final int BITS = 64;
+
+    // Biggest size whose cells fit in one buffer
+    public static final int MAX_SIZE = 131072 - BITS;
+
+    private int _size = 0;
+
+    // Number of longs in one row
+    private int _words = 0;
+
+    // The cells, and the same bytes as words
+    private ByteBuffer _buffer;
+    private LongBuffer _cells;
+
+    // The file that is mapped, or null for a direct buffer
+    private FileChannel _channel;
+    private Path _file;
+
+    // The file that the mapped one is renamed over when it
+    // is closed, or null to leave it where it is
+    private Path _target;
+
+    // Rows copied out while stepping, reused every time.
+    // Each is the row's cells, then the same shifted so
+    // bit k holds the cell at column k - 1 (west) and at
+    // column k + 1 (east), as in World.
+    private long[][] _first;
+    private long[][] _up;
+    private long[][] _mid;
+    private long[][] _down;
+    private long[] _next;
+
+    private long _generation = 0;
+
+    /**
+     * An empty grid of the given size in a direct buffer.
+     */
+
+    public OffHeapWorld(int size) {
+        this(size, ByteBuffer.allocateDirect(checkSize(size)), null, 0);
+    }
+
+    private OffHeapWorld(int size, ByteBuffer buffer, FileChannel channel, long generation) {
+        _size = size;
+        _words = size / BITS;
+        _buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        _cells = _buffer.asLongBuffer();
+        _channel = channel;
+        _generation = generation;
+        _first = new long[3][_words];
+        _up = new long[3][_words];
+        _mid = new long[3][_words];
+        _down = new long[3][_words];
+        _next = new long[_words];
+    }
+
+    /**
+     * Throw an IllegalArgumentException if a grid cannot be
+     * the given size, and return how many bytes it takes.
+     */
+
+    private static int checkSize(int size) {
+        if (size < BITS || size > MAX_SIZE || size % BITS != 0) {
+            throw new IllegalArgumentException("Size must be a multiple of " + BITS
+                                               + " from " + BITS + " to " + MAX_SIZE);
+        }
+        return (int) ((long) size * size / 8);
+    }
+
+    /**
+     * Make a new .snap file of the given size, with every
+     * cell dead, and map it as the grid.  An existing file
+     * is replaced.
+     */
+
+    public static OffHeapWorld create(String fileName, int size) throws IOException {
+        return create(Paths.get(fileName), size, StandardOpenOption.CREATE,
+                      StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Map a new temporary .snap file of the given size, with
+     * every cell dead, in the same directory as the given
+     * file.  close() renames it over that file; until then,
+     * or if the run is killed, the file is left as it was.
+     * Discard the grid with discard() instead of close() to
+     * remove the temporary file without replacing anything.
+     */
+
+    public static OffHeapWorld replacing(String fileName, int size) throws IOException {
+        Path target = Paths.get(fileName).toAbsolutePath();
+        Path temp = target.getParent().resolve("." + target.getFileName() + "."
+                                               + Long.toHexString(new Random().nextLong()) + ".tmp");
+        OffHeapWorld world = create(temp, size, StandardOpenOption.CREATE_NEW);
+        world._target = target;
+        return world;
+    }
+
+    private static OffHeapWorld create(Path file, int size, StandardOpenOption... options) throws IOException {
+        int bytes = checkSize(size);
+        Set<OpenOption> open = new HashSet<OpenOption>(Arrays.asList(options));
+        open.add(StandardOpenOption.READ);
+        open.add(StandardOpenOption.WRITE);
+        FileChannel channel = FileChannel.open(file, open);
+        try {
+            int start = SnapshotCodec.headerLength();
+            // The body is all zeroes, so growing the file is
+            // enough to write it
+            channel.write(ByteBuffer.allocate(1), start + bytes - 1);
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, start, bytes);
+            OffHeapWorld world = new OffHeapWorld(size, map, channel, 0);
+            world._file = file;
+            world.flush();
+            return world;
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        } catch (RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Map an existing uncompressed .snap file as the grid,
+     * carrying on from its generation.  Its CRC is checked
+     * first, so a damaged file is not stepped.
+     */
+
+    public static OffHeapWorld open(String fileName) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE);
+        try {
+            SnapshotCodec.Header h = SnapshotCodec.readHeader(channel);
+            if ((h._flags & SnapshotCodec.FLAG_DEFLATE) != 0) {
+                throw new IOException("A deflated snapshot cannot be mapped");
+            }
+            int bytes;
+            try {
+                bytes = checkSize(h._width);
+            } catch (IllegalArgumentException ex) {
+                throw new IOException(ex.getMessage());
+            }
+            if (h._bodyLength != bytes) {
+                throw new IOException("Snapshot body is the wrong length");
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, h._bodyStart, bytes);
+            OffHeapWorld world = new OffHeapWorld(h._width, map, channel, h._generation);
+            if (world.crc() != h._crc) {
+                throw new IOException("Snapshot is damaged (CRC mismatch)");
+            }
+            return world;
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Whether the grid is a mapped file.
+     */
+
+    public boolean isMapped() {
+        return _channel != null;
+    }
+
+    public int getSize() {
+        return _size;
+    }
+
+    public long getGeneration() {
+        return _generation;
+    }
+
+    public boolean getAlive(int row, int col) {
+        long word = _cells.get(row * _words + (col >>> 6));
+        return ((word >>> (col & 63)) & 1L) != 0;
+    }
+
+    public void setAlive(int row, int col, boolean alive) {
+        int i = row * _words + (col >>> 6);
+        long bit = 1L << (col & 63);
+        long word = _cells.get(i);
+        _cells.put(i, alive ? (word | bit) : (word & ~bit));
+    }
+
+    /**
+     * Count the number of live cells.
+     */
+
+    public long getPopulation() {
+        long population = 0;
+        for (int j = 0; j < _size; j++) {
+            getRow(j, _next);
+            for (int k = 0; k < _words; k++) {
+                population += Long.bitCount(_next[k]);
+            }
+        }
+        return population;
+    }
+
+    /**
+     * Kill every cell and reset the generation count.
+     */
+
+    public void clear() {
+        Arrays.fill(_next, 0L);
+        for (int j = 0; j < _size; j++) {
+            putRow(j, _next);
+        }
+        _generation = 0;
+    }
+
+    /**
+     * Compute the next generation, overwriting this one a
+     * row at a time.  Each row is worked out from copies of
+     * the old rows around it, taken before they are
+     * overwritten.
+     */
+
+    public void step() {
+        int size = _size;
+        long[][] first = _first;
+        long[][] up = _up;
+        long[][] mid = _mid;
+        long[][] down = _down;
+
+        loadRow(0, first);
+        loadRow(size - 1, up);
+        loadRow(0, mid);
+
+        for (int j = 0; j < size; j++) {
+            long[][] below;
+            if (j == size - 1) {
+                below = first;
+            } else {
+                loadRow(j + 1, down);
+                below = down;
+            }
+            stepRow(up, mid, below, _next);
+            putRow(j, _next);
+
+            // The old row j is now the row above, and the
+            // arrays it was in take the next row below
+            long[][] tmp = up;
+            up = mid;
+            mid = below;
+            down = tmp;
+        }
+        _generation++;
+    }
+
+    /**
+     * Copy a row out of the grid and shift it west and
+     * east, wrapping around the torus.
+     */
+
+    private void loadRow(int row, long[][] into) {
+        long[] cells = into[0];
+        long[] west = into[1];
+        long[] east = into[2];
+        int last = _words - 1;
+        getRow(row, cells);
+        for (int k = 1; k <= last; k++) {
+            west[k] = (cells[k] << 1) | (cells[k - 1] >>> 63);
+        }
+        for (int k = 0; k < last; k++) {
+            east[k] = (cells[k] >>> 1) | (cells[k + 1] << 63);
+        }
+        west[0] = (cells[0] << 1) | (cells[last] >>> 63);
+        east[last] = (cells[last] >>> 1) | (cells[0] << 63);
+    }
+
+    /**
+     * Work out the next state of one row from the old
+     * row above it, the row itself and the row below.
+     * See World.step() for how the adders work.
+     */
+
+    private void stepRow(long[][] up, long[][] mid, long[][] down, long[] next) {
+        long[] north = up[0];
+        long[] northWest = up[1];
+        long[] northEast = up[2];
+        long[] cells = mid[0];
+        long[] west = mid[1];
+        long[] east = mid[2];
+        long[] south = down[0];
+        long[] southWest = down[1];
+        long[] southEast = down[2];
+
+        for (int k = 0; k < _words; k++) {
+            long nw = northWest[k];
+            long n = north[k];
+            long ne = northEast[k];
+            long w = west[k];
+            long e = east[k];
+            long sw = southWest[k];
+            long s = south[k];
+            long se = southEast[k];
+
+            long ones1 = nw ^ n ^ ne;
+            long twos1 = (nw & n) | (ne & (nw ^ n));
+            long ones2 = w ^ e ^ sw;
+            long twos2 = (w & e) | (sw & (w ^ e));
+            long ones3 = s ^ se;
+            long twos3 = s & se;
+
+            long ones = ones1 ^ ones2 ^ ones3;
+            long twos4 = (ones1 & ones2) | (ones3 & (ones1 ^ ones2));
+
+            long twosOdd = twos1 ^ twos2 ^ twos3 ^ twos4;
+            long twosMany = (twos1 & twos2) | (twos3 & twos4)
+                | ((twos1 ^ twos2) & (twos3 ^ twos4));
+            long twoOrThree = twosOdd & ~twosMany;
+
+            next[k] = twoOrThree & (ones | cells[k]);
+        }
+    }
+
+    private void getRow(int row, long[] into) {
+        _cells.get(row * _words, into, 0, _words);
+    }
+
+    private void putRow(int row, long[] from) {
+        _cells.put(row * _words, from, 0, _words);
+    }
+
+    /**
+     * Copy the cells into words packed the way
+     * GenerationSnapshot holds them.
+     */
+
+    void pack(long[] bits) {
+        LongBuffer words = _cells.duplicate();
+        words.rewind();
+        words.get(bits);
+    }
+
+    /**
+     * The cells as words, for reading or writing a
+     * snapshot straight to or from them.
+     */
+
+    LongBuffer words() {
+        LongBuffer words = _cells.duplicate();
+        words.rewind();
+        return words;
+    }
+
+    /**
+     * Read the cells and generation of a snapshot of the
+     * same size straight into the grid.
+     */
+
+    void load(String fileName, Progress progress) throws IOException {
+        _generation = SnapshotCodec.readInto(fileName, _size, words(), progress);
+    }
+
+    /**
+     * Write the grid as a snapshot to another file.
+     */
+
+    void save(FileChannel channel, boolean deflate, Progress progress) throws IOException {
+        SnapshotCodec.write(_size, _generation, words(), channel, deflate, progress);
+    }
+
+    private int crc() {
+        CRC32 crc = new CRC32();
+        ByteBuffer bytes = _buffer.duplicate();
+        bytes.rewind();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Make the mapped file a complete snapshot of the
+     * current generation: write the cells that changed,
+     * then a header with the generation and CRC.  Does
+     * nothing for a grid in a direct buffer.  If the
+     * machine goes down part way through, the file is
+     * left with a CRC that does not match, so it is
+     * reported as damaged rather than loaded.
+     */
+
+    public void flush() throws IOException {
+        if (_channel == null) {
+            return;
+        }
+        ((MappedByteBuffer) _buffer).force();
+        SnapshotCodec.writeHeader(_channel, _size, _generation, false, _buffer.capacity(), crc());
+        _channel.force(false);
+    }
+
+    /**
+     * Flush a mapped file and close it, then rename it over
+     * the file it is replacing, if any.  If that fails, the
+     * mapped file is removed and the other one is left as it
+     * was.  The grid must not be used afterwards.
+     */
+
+    public void close() throws IOException {
+        if (_channel == null) {
+            return;
+        }
+        boolean moved = (_target == null);
+        try {
+            try {
+                flush();
+            } finally {
+                _channel.close();
+                _channel = null;
+            }
+            if (_target != null) {
+                Files.move(_file, _target, StandardCopyOption.ATOMIC_MOVE);
+                moved = true;
+            }
+        } finally {
+            if (!moved) {
+                Files.deleteIfExists(_file);
+            }
+        }
+    }
+
+    /**
+     * Close a mapped file without flushing it.  A temporary
+     * file from replacing() is removed, and nothing is
+     * replaced.  The grid must not be used afterwards.
+     */
+
+    public void discard() throws IOException {
+        if (_channel == null) {
+            return;
+        }
+        _channel.close();
+        _channel = null;
+        if (_target != null) {
+            Files.deleteIfExists(_file);
+        }
+    }
+
+}
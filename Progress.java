@@ -0,0 +1,69 @@
+import java.io.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * How far a long file operation has got, and a way to cancel it.
+ *
+ * The operation calls start() with the total amount of work, in
+ * whatever units suit it (rows, words), and advance() as it goes.
+ * Any other thread can read getFraction() or call cancel().  Once
+ * cancelled, the next advance() throws an InterruptedIOException,
+ * so the operation gives up the same way it would on any other
+ * I/O error, cleaning up as it goes.
+ */
+
+public class Progress {
+
+    private volatile long _total = 0;
+
+    private final AtomicLong _done = new AtomicLong();
+
+    private volatile boolean _cancelled = false;
+
+    /**
+     * Begin a piece of work of the given size.  Anything
+     * done before is forgotten.
+     */
+
+    public void start(long total) throws InterruptedIOException {
+        _total = total;
+        _done.set(0);
+        check();
+    }
+
+    /**
+     * Count some work as done.  Throws if the operation
+     * has been cancelled.
+     */
+
+    public void advance(long amount) throws InterruptedIOException {
+        _done.addAndGet(amount);
+        check();
+    }
+
+    private void check() throws InterruptedIOException {
+        if (_cancelled) {
+            throw new InterruptedIOException("Cancelled");
+        }
+    }
+
+    /**
+     * The fraction of the work done, from 0 to 1, or 0 if
+     * it has not started yet.
+     */
+
+    public double getFraction() {
+        long total = _total;
+        return (total <= 0) ? 0 : Math.min(1.0, _done.get() / (double) total);
+    }
+
+    public void cancel() {
+        _cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return _cancelled;
+    }
+
+}
@@ -0,0 +1,22 @@
+import java.awt.*;
+import javax.swing.*;
+import java.awt.event.*;
+
+public class RedoButton extends JButton {
+
+    private MainPanel _m;
+    
+    public RedoButton(MainPanel m) {
+	super("Redo");
+	_m = m;
+	addActionListener(new RedoButtonListener());
+    }
+
+    class RedoButtonListener implements ActionListener {
+
+	public void actionPerformed(ActionEvent e) {
+	    _m.redo();
+	}
+    }    
+    
+}
@@ -0,0 +1,337 @@
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * Reads and writes patterns in the run length encoded (RLE) format
+ * used by most other Life programs:
+ *
+ *     #C An optional comment
+ *     x = 3, y = 3, rule = B3/S23
+ *     bo$2bo$3o!
+ *
+ * Each run is an optional count and a tag: 'b' for dead cells, 'o'
+ * for live cells, '$' for the end of a row and '!' for the end of
+ * the pattern.  Dead cells at the end of a row and empty rows at
+ * the end are left out.
+ *
+ * Both directions stream.  Writing goes straight to a Writer, and
+ * on a GenerationSnapshot it skips over 64 cells of the same state
+ * at a time, so a mostly empty board is written quickly.  Reading
+ * goes straight from a Reader into a list of the live runs, so the
+ * time and memory it takes depend on the number of runs, not the
+ * area of the pattern.
+ */
+
+public class RleCodec {
+
+    // The only rule the engines know
+    public static final String RULE = "B3/S23";
+
+    // Longest line written, as the format recommends
+    private static final int LINE_LENGTH = 70;
+
+    /**
+     * A decoded pattern: its size from the header, and the
+     * runs of live cells, in the order they were read (row
+     * by row, left to right).
+     */
+
+    public static class Pattern {
+
+        private int _width;
+        private int _height;
+
+        private int[] _rows = new int[16];
+        private int[] _cols = new int[16];
+        private int[] _lengths = new int[16];
+        private int _count = 0;
+
+        public Pattern(int width, int height) {
+            _width = width;
+            _height = height;
+        }
+
+        public int getWidth() {
+            return _width;
+        }
+
+        public int getHeight() {
+            return _height;
+        }
+
+        public int getRunCount() {
+            return _count;
+        }
+
+        public int getRunRow(int i) {
+            return _rows[i];
+        }
+
+        public int getRunCol(int i) {
+            return _cols[i];
+        }
+
+        public int getRunLength(int i) {
+            return _lengths[i];
+        }
+
+        void addRun(int row, int col, int length) {
+            if (_count == _rows.length) {
+                _rows = Arrays.copyOf(_rows, _count * 2);
+                _cols = Arrays.copyOf(_cols, _count * 2);
+                _lengths = Arrays.copyOf(_lengths, _count * 2);
+            }
+            _rows[_count] = row;
+            _cols[_count] = col;
+            _lengths[_count] = length;
+            _count++;
+        }
+
+        /**
+         * Put the pattern in the top left corner of a grid
+         * at least as big as it, killing every other cell.
+         */
+
+        public void applyTo(WritableGrid grid) {
+            int size = grid.getSize();
+            int run = 0;
+            for (int j = 0; j < size; j++) {
+                int col = 0;
+                while (run < _count && _rows[run] == j) {
+                    for (; col < _cols[run]; col++) {
+                        grid.setAlive(j, col, false);
+                    }
+                    for (int end = col + _lengths[run]; col < end; col++) {
+                        grid.setAlive(j, col, true);
+                    }
+                    run++;
+                }
+                for (; col < size; col++) {
+                    grid.setAlive(j, col, false);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Writes runs, wrapping lines before they get too long.
+     */
+
+    static class RunWriter {
+
+        private Writer _out;
+        private int _lineLength = 0;
+
+        public RunWriter(Writer out) {
+            _out = out;
+        }
+
+        public void write(int count, char tag) throws IOException {
+            String token = (count == 1) ? String.valueOf(tag) : count + String.valueOf(tag);
+            if (_lineLength + token.length() > LINE_LENGTH) {
+                _out.write('\n');
+                _lineLength = 0;
+            }
+            _out.write(token);
+            _lineLength += token.length();
+        }
+
+    }
+
+    /**
+     * Write a whole grid as RLE.
+     */
+
+    public static void write(CellGrid grid, Writer out) throws IOException {
+        write(grid, out, null);
+    }
+
+    /**
+     * Write a whole grid as RLE, counting rows on the given
+     * Progress (if it is not null).
+     */
+
+    public static void write(CellGrid grid, Writer out, Progress progress) throws IOException {
+        int size = grid.getSize();
+        GenerationSnapshot snapshot = (grid instanceof GenerationSnapshot) ? (GenerationSnapshot) grid : null;
+
+        out.write("x = " + size + ", y = " + size + ", rule = " + RULE + "\n");
+        RunWriter runs = new RunWriter(out);
+
+        // Rows ended since the last live cell was written
+        int pendingRows = 0;
+
+        if (progress != null) {
+            progress.start(size);
+        }
+        for (int j = 0; j < size; j++) {
+            if (progress != null) {
+                progress.advance(1);
+            }
+            int col = 0;
+            while (col < size) {
+                int alive = nextCell(grid, snapshot, j, col, true);
+                if (alive == size) {
+                    break;
+                }
+                int dead = nextCell(grid, snapshot, j, alive, false);
+                if (pendingRows > 0) {
+                    runs.write(pendingRows, '$');
+                    pendingRows = 0;
+                }
+                if (alive > col) {
+                    runs.write(alive - col, 'b');
+                }
+                runs.write(dead - alive, 'o');
+                col = dead;
+            }
+            pendingRows++;
+        }
+        runs.write(1, '!');
+        out.write('\n');
+    }
+
+    /**
+     * The first column at or after col in the given row that
+     * is alive (or dead), or the size if there is none.
+     */
+
+    private static int nextCell(CellGrid grid, GenerationSnapshot snapshot, int row, int col, boolean alive) {
+        if (snapshot != null) {
+            return snapshot.nextCell(row, col, alive);
+        }
+        int size = grid.getSize();
+        while (col < size && grid.getAlive(row, col) != alive) {
+            col++;
+        }
+        return col;
+    }
+
+    /**
+     * Read an RLE pattern.  Throws an IOException saying
+     * what is wrong if the header is missing, the rule is
+     * not B3/S23, or a run goes outside the pattern's size.
+     */
+
+    public static Pattern read(Reader in) throws IOException {
+        return read(in, null);
+    }
+
+    /**
+     * Read an RLE pattern, counting rows on the given
+     * Progress (if it is not null).
+     */
+
+    public static Pattern read(Reader in, Progress progress) throws IOException {
+        Pattern pattern = null;
+
+        // Comment lines, then the header line
+        while (pattern == null) {
+            String line = readLine(in);
+            if (line == null) {
+                throw new IOException("No RLE header");
+            }
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            pattern = parseHeader(line);
+        }
+        if (progress != null) {
+            progress.start(pattern.getHeight());
+        }
+
+        int row = 0;
+        int col = 0;
+        int count = 0;
+        int c;
+        while ((c = in.read()) != -1 && c != '!') {
+            if (c >= '0' && c <= '9') {
+                count = count * 10 + (c - '0');
+                if (count > pattern.getWidth() + pattern.getHeight()) {
+                    throw new IOException("Run of " + count + " does not fit in the pattern");
+                }
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                continue;
+            }
+            int n = (count == 0) ? 1 : count;
+            count = 0;
+            if (c == '$') {
+                row += n;
+                col = 0;
+                if (progress != null) {
+                    progress.advance(n);
+                }
+            } else if (c == 'b' || c == '.') {
+                col += n;
+            } else if (Character.isLetter(c)) {
+                if (row >= pattern.getHeight() || col + n > pattern.getWidth()) {
+                    throw new IOException("Live cells outside the " + pattern.getWidth()
+                                          + "x" + pattern.getHeight() + " pattern at row " + (row + 1));
+                }
+                pattern.addRun(row, col, n);
+                col += n;
+            } else {
+                throw new IOException("Unexpected character '" + (char) c + "'");
+            }
+        }
+        return pattern;
+    }
+
+    /**
+     * Read one line, without the line end, or null at
+     * the end of the input.  Only used for the lines before
+     * the body, which is read a character at a time.
+     */
+
+    private static String readLine(Reader in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+        }
+        return (c == -1 && sb.length() == 0) ? null : sb.toString();
+    }
+
+    /**
+     * Parse "x = 3, y = 3, rule = B3/S23" (the rule may be
+     * left out).
+     */
+
+    private static Pattern parseHeader(String line) throws IOException {
+        int width = -1;
+        int height = -1;
+        for (String part : line.split(",")) {
+            String[] pair = part.split("=");
+            if (pair.length != 2) {
+                throw new IOException("Bad RLE header: " + line);
+            }
+            String key = pair[0].trim();
+            String value = pair[1].trim();
+            try {
+                if (key.equals("x")) {
+                    width = Integer.parseInt(value);
+                } else if (key.equals("y")) {
+                    height = Integer.parseInt(value);
+                } else if (key.equals("rule")) {
+                    if (!value.equalsIgnoreCase(RULE) && !value.equals("23/3")) {
+                        throw new IOException("Unsupported rule " + value);
+                    }
+                }
+            } catch (NumberFormatException ex) {
+                throw new IOException("Bad RLE header: " + line);
+            }
+        }
+        if (width < 0 || height < 0) {
+            throw new IOException("Bad RLE header: " + line);
+        }
+        return new Pattern(width, height);
+    }
+
+}
@@ -1,6 +1,7 @@
 import java.awt.*;
 import javax.swing.*;
 import java.awt.event.*;
+import java.util.function.*;
 import java.util.*;
 
 public class SafeSaveButton extends JButton {
@@ -16,14 +17,17 @@ public class SafeSaveButton extends JButton {
     class SafeSaveButtonListener implements ActionListener {
 
 	public void actionPerformed(ActionEvent e) {
-	    String toWrite = _m.toString();
-	    
-	    boolean success = FileAccess.safeSaveFile("backup.txt", "temptemp.txt", toWrite);
-	    
-	    if (!success) {
-		JOptionPane.showMessageDialog((Component) e.getSource(), "COULD NOT WRITE FILE backup.txt", "BROUGHT TO YOU BY BILL LABOON", JOptionPane.WARNING_MESSAGE);
-	    }
+	    final Component source = (Component) e.getSource();
+	    GenerationSnapshot toWrite = _m.snapshot();
 
+	    FileTask<Void> task = FileTask.safeSave(FileAccess.DEFAULT_FILE, toWrite);
+	    task.monitor(source, "Saving " + FileAccess.DEFAULT_FILE, new BiConsumer<Void, Throwable>() {
+		    public void accept(Void result, Throwable failure) {
+			if (failure != null) {
+			    JOptionPane.showMessageDialog(source, "COULD NOT WRITE FILE " + FileAccess.DEFAULT_FILE + ": " + failure.getMessage(), "BROUGHT TO YOU BY BILL LABOON", JOptionPane.WARNING_MESSAGE);
+			}
+		    }
+		});
 	}
     }    
     
@@ -0,0 +1,462 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.zip.*;
+
+
+/**
+ * A compact binary file format for whole generations, for saving
+ * and checkpointing big boards.
+ *
+ *     offset  size  field
+ *          0     4  magic "GOLS"
+ *          4     2  format version (1)
+ *          6     2  flags: bit 0 set if the body is deflated
+ *          8     4  width
+ *         12     4  height
+ *         16     8  generation number
+ *         24     8  length of the body as stored, in bytes
+ *         32     4  CRC-32 of the body before deflating
+ *         36     1  length of the rule
+ *         37     n  the rule, in ASCII ("B3/S23")
+ *     37 + n     .  the body
+ *
+ * All numbers are little-endian.  The body is the cells packed one
+ * bit each, exactly as GenerationSnapshot holds them: cell i (row
+ * * width + column) is bit i % 64 of 64-bit word i / 64.  A 16384
+ * square board is 32 MB packed, and much less deflated unless it
+ * is a dense random soup.
+ *
+ * An uncompressed body is read by memory mapping the file and
+ * copying the words straight into the snapshot.  A deflated one
+ * is streamed through an Inflater.  Either way the CRC is checked,
+ * so a file cut short or damaged is reported rather than loaded.
+ * An uncompressed snapshot can also be mapped and stepped in place
+ * as an OffHeapWorld.
+ */
+
+public class SnapshotCodec {
+
+    public static final int VERSION = 1;
+
+    public static final int FLAG_DEFLATE = 1;
+
+    private static final byte[] MAGIC = { 'G', 'O', 'L', 'S' };
+
+    // Bytes of the body handled at a time
+    private static final int CHUNK = 1 << 20;
+
+    // Most that deflate can shrink data by
+    private static final long MAX_DEFLATE_RATIO = 1032;
+
+    // Most bytes of the body mapped at once
+    private static final long MAP_WINDOW = 1L << 30;
+
+    /**
+     * Write a snapshot to a file, deflated or not.  Deflating
+     * uses the fastest level, since runs of empty cells are
+     * what make a board compress, and even the fastest level
+     * finds those.
+     */
+
+    public static void write(GenerationSnapshot snapshot, String fileName, boolean deflate) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                                               StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            write(snapshot, channel, deflate, null);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Write a snapshot to an empty file that is open for
+     * writing, leaving it open.  Words written are counted
+     * on the given Progress, if it is not null.
+     */
+
+    public static void write(GenerationSnapshot snapshot, FileChannel channel, boolean deflate,
+                             Progress progress) throws IOException {
+        write(snapshot.getSize(), snapshot.getGeneration(), LongBuffer.wrap(snapshot.bits()),
+              channel, deflate, progress);
+    }
+
+    /**
+     * Write a generation that is already packed into words,
+     * wherever they are, such as an OffHeapWorld's memory.
+     */
+
+    static void write(int size, long generation, LongBuffer bits, FileChannel channel, boolean deflate,
+                      Progress progress) throws IOException {
+        int headerLength = headerLength();
+        channel.position(headerLength);
+        CRC32 crc = new CRC32();
+        long bodyLength;
+        if (deflate) {
+            CountingOutputStream counter = new CountingOutputStream(Channels.newOutputStream(channel));
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                DeflaterOutputStream out = new DeflaterOutputStream(counter, deflater, CHUNK);
+                writeBody(bits, crc, null, out, progress);
+                out.finish();
+            } finally {
+                deflater.end();
+            }
+            bodyLength = counter.getCount();
+        } else {
+            writeBody(bits, crc, channel, null, progress);
+            bodyLength = (long) bits.remaining() * 8;
+        }
+        writeHeader(channel, size, generation, deflate, bodyLength, (int) crc.getValue());
+    }
+
+    /**
+     * The length of the header, which is where the body
+     * starts.
+     */
+
+    static int headerLength() {
+        return 37 + RleCodec.RULE.length();
+    }
+
+    /**
+     * Write the header at the start of the file.
+     */
+
+    static void writeHeader(FileChannel channel, int size, long generation, boolean deflate,
+                            long bodyLength, int crc) throws IOException {
+        byte[] rule = RleCodec.RULE.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer header = ByteBuffer.allocate(headerLength()).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC);
+        header.putShort((short) VERSION);
+        header.putShort((short) (deflate ? FLAG_DEFLATE : 0));
+        header.putInt(size);
+        header.putInt(size);
+        header.putLong(generation);
+        header.putLong(bodyLength);
+        header.putInt(crc);
+        header.put((byte) rule.length);
+        header.put(rule);
+        header.flip();
+        long position = 0;
+        while (header.hasRemaining()) {
+            position += channel.write(header, position);
+        }
+    }
+
+    /**
+     * Write the packed words a chunk at a time, to the
+     * channel or to the stream, adding them to the CRC.
+     * The words' position is left where it was.
+     */
+
+    private static void writeBody(LongBuffer bits, CRC32 crc, FileChannel channel, OutputStream out,
+                                  Progress progress) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+        int words = CHUNK / 8;
+        int total = bits.remaining();
+        int start = bits.position();
+        if (progress != null) {
+            progress.start(total);
+        }
+        for (int w = 0; w < total; w += words) {
+            int n = Math.min(words, total - w);
+            if (progress != null) {
+                progress.advance(n);
+            }
+            chunk.clear();
+            chunk.asLongBuffer().put(window(bits, start + w, n));
+            chunk.limit(n * 8);
+            crc.update(chunk.array(), 0, n * 8);
+            if (channel != null) {
+                while (chunk.hasRemaining()) {
+                    channel.write(chunk);
+                }
+            } else {
+                out.write(chunk.array(), 0, n * 8);
+            }
+        }
+    }
+
+    /**
+     * The fixed part of the header, as read from a file.
+     */
+
+    static class Header {
+
+        int _flags;
+        int _width;
+        long _generation;
+        long _bodyLength;
+        int _crc;
+        long _bodyStart;
+
+    }
+
+    /**
+     * Read and check the header.  Throws an IOException
+     * saying what is wrong if the file is not a snapshot,
+     * is a newer version, uses another rule, or has a size
+     * or body length that cannot be right.
+     */
+
+    static Header readHeader(FileChannel channel) throws IOException {
+        ByteBuffer fixed = ByteBuffer.allocate(37).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, fixed, 0);
+        fixed.flip();
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (fixed.get() != MAGIC[i]) {
+                throw new IOException("Not a snapshot file");
+            }
+        }
+        int version = fixed.getShort() & 0xffff;
+        if (version > VERSION) {
+            throw new IOException("Snapshot version " + version + " is newer than " + VERSION);
+        }
+        Header h = new Header();
+        h._flags = fixed.getShort() & 0xffff;
+        h._width = fixed.getInt();
+        int height = fixed.getInt();
+        h._generation = fixed.getLong();
+        h._bodyLength = fixed.getLong();
+        h._crc = fixed.getInt();
+        int ruleLength = fixed.get() & 0xff;
+        if (h._width != height || h._width < 1) {
+            throw new IOException("Snapshot is " + h._width + "x" + height + ", not a square grid");
+        }
+        if (h._width > GenerationSnapshot.MAX_SIZE) {
+            throw new IOException("Snapshot is " + h._width + "x" + height + ", bigger than "
+                                  + GenerationSnapshot.MAX_SIZE + "x" + GenerationSnapshot.MAX_SIZE);
+        }
+
+        // Check the body's length before anything is made
+        // for the cells, so a damaged header cannot make
+        // the reader allocate more than the file can hold.
+        // Deflate never shrinks data by more than 1032 to 1.
+        long cellBytes = (long) GenerationSnapshot.wordCount(h._width) * 8;
+        if ((h._flags & FLAG_DEFLATE) != 0) {
+            if (h._bodyLength < 0 || h._bodyLength * MAX_DEFLATE_RATIO + CHUNK < cellBytes) {
+                throw new IOException("Snapshot body is the wrong length");
+            }
+        } else if (h._bodyLength != cellBytes) {
+            throw new IOException("Snapshot body is the wrong length");
+        }
+
+        ByteBuffer ruleBytes = ByteBuffer.allocate(ruleLength);
+        readFully(channel, ruleBytes, 37);
+        String rule = new String(ruleBytes.array(), StandardCharsets.US_ASCII);
+        if (!rule.equalsIgnoreCase(RleCodec.RULE)) {
+            throw new IOException("Unsupported rule " + rule);
+        }
+        h._bodyStart = 37 + ruleLength;
+        if (h._bodyStart + h._bodyLength > channel.size()) {
+            throw new IOException("Snapshot is cut short");
+        }
+        return h;
+    }
+
+    /**
+     * The side of the grid in a snapshot, from its header
+     * alone.
+     */
+
+    public static int readSize(String fileName) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        try {
+            return readHeader(channel)._width;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Read a snapshot back.  Throws an IOException saying
+     * what is wrong if the header is bad (see readHeader())
+     * or the body fails its CRC.
+     */
+
+    public static GenerationSnapshot read(String fileName) throws IOException {
+        return read(fileName, null);
+    }
+
+    /**
+     * Read a snapshot back, counting words read on the
+     * given Progress (if it is not null).
+     */
+
+    public static GenerationSnapshot read(String fileName, Progress progress) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        try {
+            Header h = readHeader(channel);
+            long[] bits = new long[GenerationSnapshot.wordCount(h._width)];
+            readBody(channel, h, LongBuffer.wrap(bits), progress);
+            return new GenerationSnapshot(h._width, h._generation, bits);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Read the cells of a snapshot of the given size
+     * straight into words that are already there, such as
+     * an OffHeapWorld's memory, and return its generation.
+     */
+
+    static long readInto(String fileName, int size, LongBuffer bits, Progress progress) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        try {
+            Header h = readHeader(channel);
+            if (h._width != size) {
+                throw new IOException("Snapshot is " + h._width + "x" + h._width
+                                      + ", expected " + size + "x" + size);
+            }
+            readBody(channel, h, bits, progress);
+            return h._generation;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Read the body into the words from their position to
+     * their limit, and check its CRC.
+     */
+
+    private static void readBody(FileChannel channel, Header h, LongBuffer bits,
+                                 Progress progress) throws IOException {
+        CRC32 crc = new CRC32();
+        if (progress != null) {
+            progress.start(bits.remaining());
+        }
+        if ((h._flags & FLAG_DEFLATE) != 0) {
+            channel.position(h._bodyStart);
+            readDeflated(new BufferedInputStream(Channels.newInputStream(channel), CHUNK), bits, crc, progress);
+        } else {
+            if (h._bodyLength != (long) bits.remaining() * 8) {
+                throw new IOException("Snapshot body is the wrong length");
+            }
+            readMapped(channel, h._bodyStart, bits, crc, progress);
+        }
+        if ((int) crc.getValue() != h._crc) {
+            throw new IOException("Snapshot is damaged (CRC mismatch)");
+        }
+    }
+
+    /**
+     * The n words of bits from index from, without moving
+     * bits itself.
+     */
+
+    private static LongBuffer window(LongBuffer bits, int from, int n) {
+        LongBuffer window = bits.duplicate();
+        window.limit(from + n).position(from);
+        return window;
+    }
+
+    /**
+     * The fast path: map the body and bulk copy it into
+     * the words, a window at a time, a chunk at a time.
+     */
+
+    private static void readMapped(FileChannel channel, long start, LongBuffer bits, CRC32 crc,
+                                   Progress progress) throws IOException {
+        int total = bits.remaining();
+        int first = bits.position();
+        int w = 0;
+        long position = start;
+        while (w < total) {
+            int words = (int) Math.min(MAP_WINDOW / 8, total - w);
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, position, (long) words * 8);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            crc.update(map.duplicate());
+            LongBuffer longs = map.asLongBuffer();
+            for (int done = 0; done < words; ) {
+                int n = Math.min(CHUNK / 8, words - done);
+                longs.limit(done + n);
+                window(bits, first + w + done, n).put(longs);
+                done += n;
+                if (progress != null) {
+                    progress.advance(n);
+                }
+            }
+            w += words;
+            position += (long) words * 8;
+        }
+    }
+
+    private static void readDeflated(InputStream raw, LongBuffer bits, CRC32 crc,
+                                     Progress progress) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            InflaterInputStream in = new InflaterInputStream(raw, inflater, CHUNK);
+            byte[] chunk = new byte[CHUNK];
+            ByteBuffer view = ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN);
+            int words = CHUNK / 8;
+            int total = bits.remaining();
+            int first = bits.position();
+            for (int w = 0; w < total; w += words) {
+                int n = Math.min(words, total - w);
+                int filled = 0;
+                while (filled < n * 8) {
+                    int read = in.read(chunk, filled, n * 8 - filled);
+                    if (read < 0) {
+                        throw new IOException("Snapshot is cut short");
+                    }
+                    filled += read;
+                }
+                crc.update(chunk, 0, n * 8);
+                view.clear();
+                LongBuffer longs = view.asLongBuffer();
+                longs.limit(n);
+                window(bits, first + w, n).put(longs);
+                if (progress != null) {
+                    progress.advance(n);
+                }
+            }
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Snapshot is cut short");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Counts the bytes written through it, which is the
+     * length of the deflated body.
+     */
+
+    static class CountingOutputStream extends FilterOutputStream {
+
+        private long _count = 0;
+
+        public CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            _count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            _count += len;
+        }
+
+        public long getCount() {
+            return _count;
+        }
+
+    }
+
+}
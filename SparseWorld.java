@@ -0,0 +1,237 @@
+import java.util.*;
+
+
+/**
+ * A Game of Life world for sparse patterns on an unbounded plane.
+ *
+ * Only the live cells are stored, as a set of packed (row, col)
+ * longs.  Each step visits the live cells, adds one to a count for
+ * each of their neighbors, and then keeps the cells whose counts
+ * make them alive next time.  Memory and time both grow with the
+ * population instead of with the area of the board, and spaceships
+ * keep travelling instead of wrapping around.
+ *
+ * Rows and columns are ints.  A pattern that travels more than
+ * 2^31 cells in one direction will come back from the other side.
+ *
+ * Loading and saving use the same X/. lines as
+ * FileAccess.loadFile() and MainPanel.toString().  The loaded
+ * lines are placed with their top left corner at (0, 0), and
+ * toString() writes out that same window.
+ */
+
+public class SparseWorld {
+
+    private LongHashSet _live = new LongHashSet();
+    private LongHashSet _nextLive = new LongHashSet();
+
+    // Neighbor counts for the current step, kept in an open
+    // addressing table.  A count of 0 marks an empty slot.
+    private long[] _countKeys = new long[16];
+    private byte[] _counts = new byte[16];
+    private int _countMask = 15;
+
+    // The slots of _counts used in the current step, so that
+    // only those are gone through and emptied afterwards
+    private int[] _touched = new int[8];
+    private int _touchedCount = 0;
+
+    // The window that was loaded, and that toString() writes
+    private int _rows = 0;
+    private int _cols = 0;
+
+    private long _generation = 0;
+
+    public SparseWorld() {
+    }
+
+    public SparseWorld(ArrayList<String> lines) {
+        load(lines);
+    }
+
+    static long pack(int row, int col) {
+        return ((long) row << 32) | (col & 0xffffffffL);
+    }
+
+    static int rowOf(long key) {
+        return (int) (key >> 32);
+    }
+
+    static int colOf(long key) {
+        return (int) key;
+    }
+
+    public long getGeneration() {
+        return _generation;
+    }
+
+    public long getPopulation() {
+        return _live.size();
+    }
+
+    /**
+     * Set the window written by toString().
+     */
+
+    public void setWindow(int rows, int cols) {
+        _rows = rows;
+        _cols = cols;
+    }
+
+    public boolean getAlive(int row, int col) {
+        return _live.contains(pack(row, col));
+    }
+
+    public void setAlive(int row, int col, boolean alive) {
+        if (alive) {
+            _live.add(pack(row, col));
+        } else {
+            _live.remove(pack(row, col));
+        }
+    }
+
+    /**
+     * Kill every cell and reset the generation count.
+     */
+
+    public void clear() {
+        _live.clear(0);
+        _generation = 0;
+    }
+
+    /**
+     * Load a configuration in the X/. format.  A '.' is
+     * a dead cell and anything else is alive.
+     */
+
+    public void load(ArrayList<String> lines) {
+        clear();
+        _rows = lines.size();
+        _cols = 0;
+        for (int j = 0; j < lines.size(); j++) {
+            String l = lines.get(j);
+            _cols = Math.max(_cols, l.length());
+            for (int k = 0; k < l.length(); k++) {
+                if (l.charAt(k) != '.') {
+                    setAlive(j, k, true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Run the given number of generations.
+     */
+
+    public void step(long generations) {
+        for (long g = 0; g < generations; g++) {
+            step();
+        }
+    }
+
+    /**
+     * Compute the next generation.
+     */
+
+    public void step() {
+        // Every live cell adds to at most eight counts; keep
+        // the table at most half full.  It is made smaller
+        // again when the population drops, so a step after a
+        // spike costs as much as the cells alive now.
+        int needed = Math.max(16, _live.size() * 16);
+        if (_counts.length < needed || _counts.length > needed * 4) {
+            int capacity = 16;
+            while (capacity < needed) {
+                capacity *= 2;
+            }
+            _countKeys = new long[capacity];
+            _counts = new byte[capacity];
+            _countMask = capacity - 1;
+            _touched = new int[capacity / 2];
+        }
+
+        LongHashSet live = _live;
+        for (int s = 0; s < live.capacity(); s++) {
+            if (live.isUsed(s)) {
+                long key = live.keyAt(s);
+                int row = rowOf(key);
+                int col = colOf(key);
+                addNeighbor(row - 1, col - 1);
+                addNeighbor(row - 1, col);
+                addNeighbor(row - 1, col + 1);
+                addNeighbor(row, col - 1);
+                addNeighbor(row, col + 1);
+                addNeighbor(row + 1, col - 1);
+                addNeighbor(row + 1, col);
+                addNeighbor(row + 1, col + 1);
+            }
+        }
+
+        // Born with 3, survives with 2 or 3.  Cells with no
+        // live neighbors never got a count, and die.
+        LongHashSet next = _nextLive;
+        next.clear(live.size());
+        for (int t = 0; t < _touchedCount; t++) {
+            int i = _touched[t];
+            int count = _counts[i];
+            if (count == 3 || (count == 2 && live.contains(_countKeys[i]))) {
+                next.add(_countKeys[i]);
+            }
+            _counts[i] = 0;
+        }
+        _touchedCount = 0;
+
+        _nextLive = live;
+        _live = next;
+        _generation++;
+    }
+
+    private void addNeighbor(int row, int col) {
+        long key = pack(row, col);
+        int i = LongHashSet.hash(key) & _countMask;
+        while (_counts[i] != 0) {
+            if (_countKeys[i] == key) {
+                _counts[i]++;
+                return;
+            }
+            i = (i + 1) & _countMask;
+        }
+        _countKeys[i] = key;
+        _counts[i] = 1;
+        _touched[_touchedCount++] = i;
+    }
+
+    /**
+     * Write the loaded window out in the X/. format, one
+     * line per row, like MainPanel.toString().
+     */
+
+    public String toString() {
+        return toString(0, 0, _rows, _cols);
+    }
+
+    public String toString(int top, int left, int rows, int cols) {
+        char[][] grid = new char[rows][cols];
+        for (int j = 0; j < rows; j++) {
+            Arrays.fill(grid[j], '.');
+        }
+        for (int s = 0; s < _live.capacity(); s++) {
+            if (_live.isUsed(s)) {
+                long key = _live.keyAt(s);
+                long row = (long) rowOf(key) - top;
+                long col = (long) colOf(key) - left;
+                if (row >= 0 && row < rows && col >= 0 && col < cols) {
+                    grid[(int) row][(int) col] = 'X';
+                }
+            }
+        }
+
+        StringBuilder sb = new StringBuilder(rows * (cols + 1));
+        for (int j = 0; j < rows; j++) {
+            sb.append(grid[j]);
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+}
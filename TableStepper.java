@@ -0,0 +1,161 @@
+/**
+ * Steps DenseKernel's tiles with lookup tables instead of counting
+ * neighbors, so there are no branches on the state of the cells.
+ *
+ * The main table is indexed by a 4x4 block of cells, one bit each,
+ * and gives the next state of the 2x2 block in its middle.  A tile
+ * is gone through two rows at a time.  Along each pair of rows the
+ * 16-bit index slides two columns to the right at a time: the old
+ * index is shifted along and the next two columns of four cells
+ * are or-ed in, so each lookup reads eight cells and gives four.
+ * The bottom row of a tile with an odd number of rows, and the last
+ * column of one with an odd number of columns, only happen at the
+ * edge of a grid of odd size.  Those cells are done with a second
+ * table, indexed by a single cell's 3x3 neighborhood.
+ *
+ * Both tables are built once, when the class is loaded, straight
+ * from the B3/S23 rule.  Each entry of the main table also has a
+ * bit saying whether any of the four cells changed, so a tile's
+ * changed flag is just those bits or-ed together.
+ */
+
+public class TableStepper implements DenseKernel.Stepper {
+
+    // Set in a BLOCK entry if any of the 2x2 cells changed
+    private static final int CHANGED = 0x10;
+
+    // Next state of the middle 2x2 cells of a 4x4 block.  Bit
+    // 4 * c + r of the index is the cell in column c (0 on the
+    // left) and row r (0 at the top).  Bit 0 of an entry is the
+    // top left cell, bit 1 the top right, bit 2 the bottom left
+    // and bit 3 the bottom right.
+    private static final byte[] BLOCK = new byte[1 << 16];
+
+    // Next state of the middle cell of a 3x3 block, indexed
+    // the same way as BLOCK, with 3 bits per column
+    private static final byte[] CELL = new byte[1 << 9];
+
+    static {
+        for (int index = 0; index < CELL.length; index++) {
+            CELL[index] = (byte) nextState(index, 3, 1, 1);
+        }
+        for (int index = 0; index < BLOCK.length; index++) {
+            int entry = 0;
+            for (int r = 1; r <= 2; r++) {
+                for (int c = 1; c <= 2; c++) {
+                    int bit = nextState(index, 4, c, r);
+                    entry |= bit << (2 * (r - 1) + (c - 1));
+                    if (bit != ((index >>> (4 * c + r)) & 1)) {
+                        entry |= CHANGED;
+                    }
+                }
+            }
+            BLOCK[index] = (byte) entry;
+        }
+    }
+
+    /**
+     * The next state of the cell in column c and row r of a
+     * block of cells with the given number of rows.
+     */
+
+    private static int nextState(int index, int rows, int c, int r) {
+        int numNeighbors = 0;
+        for (int dc = -1; dc <= 1; dc++) {
+            for (int dr = -1; dr <= 1; dr++) {
+                if (dc != 0 || dr != 0) {
+                    numNeighbors += (index >>> (rows * (c + dc) + r + dr)) & 1;
+                }
+            }
+        }
+        int alive = (index >>> (rows * c + r)) & 1;
+        return ((numNeighbors | alive) == 3) ? 1 : 0;
+    }
+
+    public void stepTileRow(byte[] cur, byte[] next, int size, int tileRow,
+                            boolean[] awake, boolean[] changed) {
+        int tiles = (size + DenseKernel.TILE - 1) / DenseKernel.TILE;
+        for (int k = 0; k < tiles; k++) {
+            int t = tileRow * tiles + k;
+            if (awake[t]) {
+                changed[t] = stepTile(cur, next, size, tileRow, k);
+            }
+        }
+    }
+
+    /**
+     * Compute one tile of the next generation, and return
+     * whether any of its cells changed.
+     */
+
+    private static boolean stepTile(byte[] cur, byte[] next, int size, int tileRow, int tileCol) {
+        int stride = size + 2;
+        int rowStart = tileRow * DenseKernel.TILE;
+        int rowEnd = Math.min(rowStart + DenseKernel.TILE, size);
+        int col = tileCol * DenseKernel.TILE;
+        int width = Math.min(DenseKernel.TILE, size - col);
+        int pairs = width / 2;
+        int diff = 0;
+
+        int j = rowStart;
+        for (; j + 1 < rowEnd; j += 2) {
+            // The first cell of the top row of the pair
+            int i = (j + 1) * stride + col + 1;
+
+            // The window starts with the column to the left
+            // of the tile, and the first one of the tile, as
+            // its two columns on the right
+            int index = (column(cur, stride, i - 1) << 8) | (column(cur, stride, i) << 12);
+            for (int p = 0; p < pairs; p++, i += 2) {
+                index = (index >>> 8) | (column(cur, stride, i + 1) << 8) | (column(cur, stride, i + 2) << 12);
+                int entry = BLOCK[index];
+                next[i] = (byte) (entry & 1);
+                next[i + 1] = (byte) ((entry >>> 1) & 1);
+                next[i + stride] = (byte) ((entry >>> 2) & 1);
+                next[i + stride + 1] = (byte) ((entry >>> 3) & 1);
+                diff |= entry;
+            }
+            if ((width & 1) != 0) {
+                diff |= stepCell(cur, next, stride, i);
+                diff |= stepCell(cur, next, stride, i + stride);
+            }
+        }
+        if (j < rowEnd) {
+            int i = (j + 1) * stride + col + 1;
+            for (int end = i + width; i < end; i++) {
+                diff |= stepCell(cur, next, stride, i);
+            }
+        }
+        return (diff & CHANGED) != 0;
+    }
+
+    /**
+     * The four cells from the row above i to two rows below
+     * it, as a column of BLOCK's index.
+     */
+
+    private static int column(byte[] cur, int stride, int i) {
+        return cur[i - stride] | (cur[i] << 1) | (cur[i + stride] << 2) | (cur[i + 2 * stride] << 3);
+    }
+
+    /**
+     * Compute a single cell of the next generation, and
+     * return CHANGED if it changed, or else 0.
+     */
+
+    private static int stepCell(byte[] cur, byte[] next, int stride, int i) {
+        int index = 0;
+        for (int c = 0; c < 3; c++) {
+            int k = i + c - 1;
+            index |= (cur[k - stride] | (cur[k] << 1) | (cur[k + stride] << 2)) << (3 * c);
+        }
+        byte b = CELL[index];
+        next[i] = b;
+        return (b ^ cur[i]) << 4;
+    }
+
+    public String getName() {
+        return DenseKernel.TABLE;
+    }
+
+}
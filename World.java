@@ -1,14 +1,260 @@
 import java.util.*;
 
 
-public class World  {
+/**
+ * The Game of Life model without any Swing in it.  The grid is a
+ * square torus, just like the one in MainPanel, but each row is
+ * stored as a run of longs with one bit per cell.  A generation is
+ * computed 64 cells at a time with bitwise adders instead of
+ * counting neighbors one cell at a time.
+ */
+
+public class World implements LifeEngine {
+
+    private static final int BITS = 64;
+
+    private int _size = 0;
+
+    // Number of longs needed to hold one row
+    private int _words = 0;
+
+    // Mask of the valid bits in the last word of a row
+    private long _lastMask = 0L;
+
+    // Current generation, row-major, _words longs per row
+    private long[] _cells;
+
+    // Scratch space reused on every step so that stepping
+    // never allocates.  _west and _east hold, for every
+    // cell, the state of its left and right neighbor.
+    private long[] _next;
+    private long[] _west;
+    private long[] _east;
+
+    private long _generation = 0;
 
     public World(int size) {
-	
+        if (size < 1) {
+            throw new IllegalArgumentException("Size must be a positive integer");
+        }
+        _size = size;
+        _words = (size + BITS - 1) / BITS;
+        int tail = size % BITS;
+        _lastMask = (tail == 0) ? -1L : (1L << tail) - 1;
+        _cells = new long[size * _words];
+        _next = new long[size * _words];
+        _west = new long[size * _words];
+        _east = new long[size * _words];
     }
 
+    /**
+     * Build a world from the lines of a saved file.  The
+     * format is the same one MainPanel.load() reads: a '.'
+     * is a dead cell and anything else is alive.
+     */
+
     public World(ArrayList<String> lines) {
+        this(lines.size());
+        load(lines);
+    }
+
+    public int getSize() {
+        return _size;
+    }
+
+    public long getGeneration() {
+        return _generation;
+    }
+
+    public boolean getAlive(int row, int col) {
+        long word = _cells[row * _words + (col >>> 6)];
+        return ((word >>> (col & 63)) & 1L) != 0;
+    }
+
+    public void setAlive(int row, int col, boolean alive) {
+        int i = row * _words + (col >>> 6);
+        long bit = 1L << (col & 63);
+        if (alive) {
+            _cells[i] |= bit;
+        } else {
+            _cells[i] &= ~bit;
+        }
+    }
+
+    /**
+     * Count the number of live cells.
+     */
+
+    public long getPopulation() {
+        long population = 0;
+        for (int j = 0; j < _cells.length; j++) {
+            population += Long.bitCount(_cells[j]);
+        }
+        return population;
+    }
+
+    /**
+     * Kill every cell and reset the generation count.
+     */
+
+    public void clear() {
+        Arrays.fill(_cells, 0L);
+        _generation = 0;
+    }
+
+    /**
+     * Load a configuration in the X/. format.  Lines
+     * beyond the size of the world are ignored, and short
+     * lines leave the rest of their row dead.
+     */
+
+    public void load(ArrayList<String> lines) {
+        clear();
+        int rows = Math.min(lines.size(), _size);
+        for (int j = 0; j < rows; j++) {
+            String l = lines.get(j);
+            int cols = Math.min(l.length(), _size);
+            for (int k = 0; k < cols; k++) {
+                if (l.charAt(k) != '.') {
+                    setAlive(j, k, true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Run the given number of generations.
+     */
+
+    public void step(long generations) {
+        for (long g = 0; g < generations; g++) {
+            step();
+        }
+    }
+
+    /**
+     * Compute the next generation.
+     *
+     * For every row we first build two shifted copies of it,
+     * so that bit k of _west holds the cell at column k - 1
+     * and bit k of _east holds the cell at column k + 1
+     * (wrapping around the torus).  The eight neighbor bits
+     * of every cell in a word are then summed with a few
+     * full adders, and the rules are applied to all 64 cells
+     * of the word at once.
+     */
+
+    public void step() {
+        int size = _size;
+        int words = _words;
+
+        for (int j = 0; j < size; j++) {
+            shiftRow(j * words);
+        }
+
+        for (int j = 0; j < size; j++) {
+            int up = ((j == 0) ? size - 1 : j - 1) * words;
+            int mid = j * words;
+            int down = ((j == size - 1) ? 0 : j + 1) * words;
+
+            for (int k = 0; k < words; k++) {
+                long nw = _west[up + k];
+                long n = _cells[up + k];
+                long ne = _east[up + k];
+                long w = _west[mid + k];
+                long e = _east[mid + k];
+                long sw = _west[down + k];
+                long s = _cells[down + k];
+                long se = _east[down + k];
+
+                // Three adders reduce the eight neighbors to
+                // three "ones" bits and three "twos" bits.
+                long ones1 = nw ^ n ^ ne;
+                long twos1 = (nw & n) | (ne & (nw ^ n));
+                long ones2 = w ^ e ^ sw;
+                long twos2 = (w & e) | (sw & (w ^ e));
+                long ones3 = s ^ se;
+                long twos3 = s & se;
+
+                // Add the ones together.
+                long ones = ones1 ^ ones2 ^ ones3;
+                long twos4 = (ones1 & ones2) | (ones3 & (ones1 ^ ones2));
+
+                // The neighbor count is 2 or 3 exactly when
+                // one of the four "twos" bits is set.
+                long twosOdd = twos1 ^ twos2 ^ twos3 ^ twos4;
+                long twosMany = (twos1 & twos2) | (twos3 & twos4)
+                    | ((twos1 ^ twos2) & (twos3 ^ twos4));
+                long twoOrThree = twosOdd & ~twosMany;
+
+                // Born with 3, survives with 2 or 3.
+                _next[mid + k] = twoOrThree & (ones | _cells[mid + k]);
+            }
+        }
+
+        long[] tmp = _cells;
+        _cells = _next;
+        _next = tmp;
+        _generation++;
+    }
+
+    /**
+     * Fill in _west and _east for the row starting at
+     * the given offset.
+     */
+
+    private void shiftRow(int offset) {
+        int words = _words;
+        int last = offset + words - 1;
+
+        for (int k = offset; k <= last; k++) {
+            long word = _cells[k];
+            long fromLeft = (k == offset) ? 0L : _cells[k - 1] >>> 63;
+            long fromRight = (k == last) ? 0L : _cells[k + 1] << 63;
+            _west[k] = (word << 1) | fromLeft;
+            _east[k] = (word >>> 1) | fromRight;
+        }
+        _west[last] &= _lastMask;
+
+        // Now wrap around the edges of the torus.  The first
+        // cell's west neighbor is the last cell of the row,
+        // and the last cell's east neighbor is the first.
+        int lastBit = (_size - 1) & 63;
+        long lastCell = (_cells[last] >>> lastBit) & 1L;
+        long firstCell = _cells[offset] & 1L;
+        _west[offset] |= lastCell;
+        _east[last] = (_east[last] & ~(1L << lastBit)) | (firstCell << lastBit);
+    }
+
+    /**
+     * Convert the world into a 2-D array of booleans, in
+     * the same layout MainPanel uses.
+     */
+
+    public boolean[][] toBoolean() {
+        boolean[][] toReturn = new boolean[_size][_size];
+        for (int j = 0; j < _size; j++) {
+            for (int k = 0; k < _size; k++) {
+                toReturn[j][k] = getAlive(j, k);
+            }
+        }
+        return toReturn;
+    }
+
+    /**
+     * Convert the world into the same X/. String that
+     * MainPanel.toString() writes to a file.
+     */
 
+    public String toString() {
+        StringBuilder sb = new StringBuilder(_size * (_size + 1));
+        for (int j = 0; j < _size; j++) {
+            for (int k = 0; k < _size; k++) {
+                sb.append(getAlive(j, k) ? 'X' : '.');
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
     }
 
 }
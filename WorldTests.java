@@ -0,0 +1,1454 @@
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the World simulation model and the stepping kernels.
+ * Every engine is checked against a plain copy of the rules on
+ * the torus, as MainPanel.iterateCell() used to apply them.
+ */
+public class WorldTests {
+
+    /**
+     * Build a MainPanel whose cells match the given grid.
+     */
+    private MainPanel panelFor(boolean[][] grid) {
+        int size = grid.length;
+        MainPanel mp = new MainPanel(size);
+        Cell[][] f = new Cell[size][size];
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                f[i][j] = new Cell(grid[i][j]);
+            }
+        }
+        mp.setCells(f);
+        return mp;
+    }
+
+    private boolean[][] randomGrid(int size, long seed) {
+        Random r = new Random(seed);
+        boolean[][] grid = new boolean[size][size];
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                grid[i][j] = r.nextInt(3) == 0;
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * The rules exactly as MainPanel.iterateCell() applied them
+     * before the stepping kernels were added, with the same
+     * wrapping on the torus.  Used as the reference the faster
+     * engines are compared against.
+     */
+    private boolean[][] referenceStep(boolean[][] grid) {
+        int size = grid.length;
+        boolean[][] next = new boolean[size][size];
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                int numNeighbors = 0;
+                for (int dx = -1; dx <= 1; dx++) {
+                    for (int dy = -1; dy <= 1; dy++) {
+                        if ((dx != 0 || dy != 0) && grid[(x + dx + size) % size][(y + dy + size) % size]) {
+                            numNeighbors++;
+                        }
+                    }
+                }
+                if (grid[x][y]) {
+                    next[x][y] = numNeighbors == 2 || numNeighbors == 3;
+                } else {
+                    next[x][y] = numNeighbors == 3;
+                }
+            }
+        }
+        return next;
+    }
+
+    private void assertSameGrid(boolean[][] expected, LifeEngine actual) {
+        for (int i = 0; i < expected.length; i++) {
+            for (int j = 0; j < expected.length; j++) {
+                assertEquals("cell " + i + "," + j, expected[i][j], actual.getAlive(i, j));
+            }
+        }
+    }
+
+    private <T extends LifeEngine> T fill(T engine, boolean[][] grid) {
+        for (int i = 0; i < grid.length; i++) {
+            for (int j = 0; j < grid.length; j++) {
+                engine.setAlive(i, j, grid[i][j]);
+            }
+        }
+        return engine;
+    }
+
+    /**
+     * Step an engine and the reference rules with the same random
+     * start for several generations and make sure they always agree.
+     */
+    private void checkAgainstReference(LifeEngine engine, long seed) {
+        boolean[][] grid = randomGrid(engine.getSize(), seed);
+        fill(engine, grid);
+        for (int g = 0; g < 8; g++) {
+            grid = referenceStep(grid);
+            engine.step();
+            assertSameGrid(grid, engine);
+        }
+    }
+
+    /**
+     * Step a MainPanel and the reference rules with the same random
+     * start for several generations and make sure they always agree.
+     */
+    private void checkMainPanelAgainstReference(int size, long seed) {
+        boolean[][] grid = randomGrid(size, seed);
+        MainPanel mp = panelFor(grid);
+        for (int g = 0; g < 8; g++) {
+            grid = referenceStep(grid);
+            mp.run();
+            boolean[][] actual = mp.convertToBoolean(mp.getCells());
+            for (int i = 0; i < size; i++) {
+                assertArrayEquals(grid[i], actual[i]);
+            }
+        }
+    }
+
+    /**
+     * A grid narrower than one word should step exactly like
+     * the reference rules.
+     */
+    @Test
+    public void worldMatchesReferenceSmall() {
+        checkAgainstReference(new World(15), 1);
+    }
+
+    /**
+     * A grid that fills exactly one word per row should step exactly
+     * like the reference rules, including the wrap at bit 63.
+     */
+    @Test
+    public void worldMatchesReferenceOneWord() {
+        checkAgainstReference(new World(64), 2);
+    }
+
+    /**
+     * A grid whose rows span a partial second word should step
+     * exactly like the reference rules.
+     */
+    @Test
+    public void worldMatchesReferenceTwoWords() {
+        checkAgainstReference(new World(70), 3);
+    }
+
+    /**
+     * An off-heap grid should step exactly like the reference
+     * rules, with the wrap across words and across the rows it
+     * has already overwritten, and refuse sizes that do not fill
+     * whole words.
+     */
+    @Test
+    public void offHeapWorldMatchesReference() {
+        checkAgainstReference(new OffHeapWorld(64), 4);
+        checkAgainstReference(new OffHeapWorld(192), 5);
+        try {
+            new OffHeapWorld(70);
+            fail("Size that is not a multiple of 64 was accepted");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    /**
+     * A blinker is a period 2 oscillator, so after two generations
+     * the world should be back where it started.
+     */
+    @Test
+    public void blinkerOscillates() {
+        ArrayList<String> lines = new ArrayList<String>();
+        lines.add(".....");
+        lines.add("..X..");
+        lines.add("..X..");
+        lines.add("..X..");
+        lines.add(".....");
+        World w = new World(lines);
+        String start = w.toString();
+
+        w.step();
+        assertEquals(".....\n.....\n.XXX.\n.....\n.....\n", w.toString());
+        w.step();
+        assertEquals(start, w.toString());
+        assertEquals(2, w.getGeneration());
+        assertEquals(3, w.getPopulation());
+    }
+
+    /**
+     * Clearing the world should kill every cell.
+     */
+    @Test
+    public void clearKillsEverything() {
+        World w = fill(new World(20), randomGrid(20, 4));
+        w.clear();
+        assertEquals(0, w.getPopulation());
+    }
+
+    /**
+     * The halo kernel should match the reference rules, including
+     * cells on the edges and corners that wrap around.
+     */
+    @Test
+    public void denseKernelMatchesReference() {
+        checkAgainstReference(new DenseKernel(15), 5);
+        checkAgainstReference(new DenseKernel(1), 6);
+        checkAgainstReference(new DenseKernel(2), 7);
+    }
+
+    /**
+     * MainPanel should step exactly like the reference rules now
+     * that it uses the halo kernel.
+     */
+    @Test
+    public void mainPanelMatchesReference() {
+        checkMainPanelAgainstReference(15, 8);
+    }
+
+    /**
+     * Stepping in parallel bands of rows should give exactly the
+     * same generations as stepping on one thread.
+     */
+    @Test
+    public void parallelKernelMatchesReference() {
+        checkAgainstReference(new DenseKernel(50, 4), 9);
+        checkAgainstReference(new DenseKernel(3, 4), 10);
+    }
+
+    /**
+     * A glider on an otherwise empty board only keeps the tiles
+     * around it awake.  The kernel should still step exactly like
+     * the reference rules as the glider moves from tile to tile
+     * and wraps around the edges.
+     */
+    @Test
+    public void activeTilesFollowGlider() {
+        boolean[][] grid = new boolean[100][100];
+        grid[0][1] = true;
+        grid[1][2] = true;
+        grid[2][0] = true;
+        grid[2][1] = true;
+        grid[2][2] = true;
+        DenseKernel kernel = fill(new DenseKernel(100), grid);
+        for (int g = 0; g < 420; g++) {
+            grid = referenceStep(grid);
+            kernel.step();
+            assertSameGrid(grid, kernel);
+        }
+        assertTrue(kernel.getAwakeTiles() < kernel.getTileCount());
+    }
+
+    /**
+     * Once a board has settled into still lifes every tile goes to
+     * sleep, and changing a cell wakes its tile back up.
+     */
+    @Test
+    public void settledTilesSleepUntilWoken() {
+        DenseKernel kernel = new DenseKernel(96);
+        kernel.setAlive(20, 20, true);
+        kernel.setAlive(20, 21, true);
+        kernel.setAlive(21, 20, true);
+        kernel.setAlive(21, 21, true);
+        kernel.step();
+        kernel.step();
+        assertEquals(0, kernel.getAwakeTiles());
+
+        // A lone cell far from the block dies of loneliness
+        kernel.setAlive(70, 70, true);
+        kernel.step();
+        assertTrue(kernel.getAwakeTiles() > 0);
+        assertFalse(kernel.getAlive(70, 70));
+        assertTrue(kernel.getAlive(20, 20));
+    }
+
+    /**
+     * Step kernels using the named stepper against the reference
+     * rules on boards that are not a whole number of tiles (or
+     * vectors) wide, including odd sizes.  Then follow a glider
+     * across a board that is mostly asleep, and make sure the
+     * stepper gives the same changes and awake tiles as the scalar
+     * one in every generation.
+     */
+    private void checkStepperAgainstScalar(String name, long seed) {
+        int[] sizes = { 1, 2, 3, 15, 16, 17, 33, 70, 130 };
+        for (int s = 0; s < sizes.length; s++) {
+            checkAgainstReference(new DenseKernel(sizes[s], null, DenseKernel.stepper(name)), seed + s);
+        }
+
+        boolean[][] grid = new boolean[150][150];
+        grid[0][1] = true;
+        grid[1][2] = true;
+        grid[2][0] = true;
+        grid[2][1] = true;
+        grid[2][2] = true;
+        DenseKernel kernel = fill(new DenseKernel(150, null, DenseKernel.stepper(name)), grid);
+        DenseKernel scalar = fill(new DenseKernel(150, null, DenseKernel.stepper(DenseKernel.SCALAR)), grid);
+        assertEquals(name, kernel.getStepperName());
+        ChangeSet expected = new ChangeSet();
+        ChangeSet actual = new ChangeSet();
+        for (int g = 0; g < 700; g++) {
+            kernel.step();
+            scalar.step();
+            kernel.getChanges(actual);
+            scalar.getChanges(expected);
+            assertArrayEquals(expected.copyBirths(), actual.copyBirths());
+            assertArrayEquals(expected.copyDeaths(), actual.copyDeaths());
+            assertEquals(scalar.getAwakeTiles(), kernel.getAwakeTiles());
+        }
+        assertEquals(textOf(scalar), textOf(kernel));
+    }
+
+    /**
+     * The vector stepper should match the scalar one.  It only
+     * runs if the JVM was started with --add-modules
+     * jdk.incubator.vector and the simd/ classes.
+     */
+    @Test
+    public void vectorStepperMatchesScalar() {
+        Assume.assumeTrue(DenseKernel.stepper(DenseKernel.VECTOR) != null);
+        checkStepperAgainstScalar(DenseKernel.VECTOR, 40);
+    }
+
+    /**
+     * The lookup table stepper should match the scalar one,
+     * including the odd row and column at the edge of boards of
+     * odd size, which it does a cell at a time.
+     */
+    @Test
+    public void tableStepperMatchesScalar() {
+        checkStepperAgainstScalar(DenseKernel.TABLE, 60);
+    }
+
+    private String textOf(CellGrid engine) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < engine.getSize(); i++) {
+            for (int j = 0; j < engine.getSize(); j++) {
+                sb.append(engine.getAlive(i, j) ? 'X' : '.');
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A soup in the middle of a big board never reaches the edges in
+     * 64 generations, so HashLife and SparseWorld on the plane should
+     * agree with the
+     * kernel on the torus, whether it gets there one generation at a
+     * time or in jumps.  A tiny node limit forces the cache to be
+     * collected along the way.
+     */
+    @Test
+    public void planeEnginesMatchKernel() {
+        int size = 200;
+        boolean[][] grid = new boolean[size][size];
+        boolean[][] soup = randomGrid(20, 11);
+        ArrayList<String> lines = new ArrayList<String>();
+        for (int i = 0; i < size; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = 0; j < size; j++) {
+                if (i >= 90 && i < 110 && j >= 90 && j < 110) {
+                    grid[i][j] = soup[i - 90][j - 90];
+                }
+                sb.append(grid[i][j] ? 'X' : '.');
+            }
+            lines.add(sb.toString());
+        }
+
+        DenseKernel kernel = fill(new DenseKernel(size), grid);
+        SparseWorld sparse = new SparseWorld(lines);
+        HashLife jumps = new HashLife(lines);
+        HashLife small = new HashLife(100);
+        small.load(lines);
+        for (int g = 0; g < 64; g++) {
+            kernel.step();
+            small.step();
+            sparse.step();
+        }
+        jumps.step(64);
+
+        assertEquals(textOf(kernel), jumps.toString());
+        assertEquals(textOf(kernel), small.toString());
+        assertEquals(textOf(kernel), sparse.toString());
+        assertEquals(64, jumps.getGeneration());
+    }
+
+    /**
+     * A glider moves one cell down and to the right every four
+     * generations, so after a very long jump it should be the same
+     * shape a very long way away.
+     */
+    @Test
+    public void hashLifeJumpsGlider() {
+        ArrayList<String> lines = new ArrayList<String>();
+        lines.add(".X.");
+        lines.add("..X");
+        lines.add("XXX");
+        HashLife h = new HashLife(lines);
+        long generations = 4L * 1000000000L;
+        h.step(generations);
+
+        assertEquals(5, h.getPopulation());
+        assertEquals(".X.\n..X\nXXX\n", h.toString(1000000000L, 1000000000L, 3, 3));
+    }
+
+    /**
+     * A glider in a sparse world keeps travelling instead of wrapping,
+     * and only its five cells are ever stored.
+     */
+    @Test
+    public void sparseGliderTravels() {
+        SparseWorld w = new SparseWorld();
+        w.setAlive(0, 1, true);
+        w.setAlive(1, 2, true);
+        w.setAlive(2, 0, true);
+        w.setAlive(2, 1, true);
+        w.setAlive(2, 2, true);
+        w.step(4000);
+
+        assertEquals(5, w.getPopulation());
+        assertEquals(".X.\n..X\nXXX\n", w.toString(1000, 1000, 3, 3));
+    }
+
+    /**
+     * After the population drops from a dense soup to a glider, a
+     * sparse world should still step correctly, and its sets should
+     * be back to a size that suits a handful of cells.
+     */
+    @Test
+    public void sparseWorldShrinksAfterSpike() {
+        SparseWorld w = new SparseWorld();
+        boolean[][] soup = randomGrid(200, 24);
+        for (int i = 0; i < 200; i++) {
+            for (int j = 0; j < 200; j++) {
+                w.setAlive(i, j, soup[i][j]);
+            }
+        }
+        w.step(3);
+        w.clear();
+        w.setAlive(0, 1, true);
+        w.setAlive(1, 2, true);
+        w.setAlive(2, 0, true);
+        w.setAlive(2, 1, true);
+        w.setAlive(2, 2, true);
+        w.step(400);
+        assertEquals(5, w.getPopulation());
+        assertEquals(".X.\n..X\nXXX\n", w.toString(100, 100, 3, 3));
+
+        LongHashSet set = new LongHashSet();
+        for (long key = 0; key < 100000; key++) {
+            set.add(key);
+        }
+        set.clear(5);
+        assertEquals(0, set.size());
+        assertTrue(set.capacity() <= 64);
+        assertTrue(set.add(7));
+        assertTrue(set.contains(7));
+    }
+
+    /**
+     * Adding and removing keys should behave exactly like a HashSet,
+     * including removals from the middle of a run of probes.
+     */
+    @Test
+    public void longHashSetMatchesHashSet() {
+        Random r = new Random(12);
+        LongHashSet set = new LongHashSet();
+        java.util.HashSet<Long> expected = new java.util.HashSet<Long>();
+        for (int i = 0; i < 20000; i++) {
+            long key = r.nextInt(500) - 250;
+            if (r.nextBoolean()) {
+                assertEquals(expected.add(key), set.add(key));
+            } else {
+                assertEquals(expected.remove(key), set.remove(key));
+            }
+            assertEquals(expected.size(), set.size());
+        }
+        for (long key = -250; key < 250; key++) {
+            assertEquals(expected.contains(key), set.contains(key));
+        }
+    }
+
+    /**
+     * In canvas mode there are no Cell buttons, but clicking on cells
+     * and stepping should work exactly the same as with buttons.
+     */
+    @Test
+    public void canvasPanelMatchesReference() {
+        boolean[][] grid = randomGrid(15, 13);
+        MainPanel mp = new MainPanel(15, 1, true);
+        assertTrue(mp.isCanvasMode());
+        assertNull(mp.getCells());
+        for (int i = 0; i < 15; i++) {
+            for (int j = 0; j < 15; j++) {
+                if (grid[i][j]) {
+                    mp.toggleCell(i, j);
+                }
+            }
+        }
+        for (int g = 0; g < 8; g++) {
+            grid = referenceStep(grid);
+            mp.run();
+        }
+        DenseKernel expected = fill(new DenseKernel(15), grid);
+        assertEquals(textOf(expected), mp.toString());
+    }
+
+    /**
+     * While running continuously, only some generations are drawn,
+     * but when the run stops the cells must show the very last
+     * generation computed.  A blinker shows which one that was.
+     */
+    @Test
+    public void runContinuousDrawsLastGeneration() {
+        final MainPanel mp = new MainPanel(5);
+        mp.toggleCell(2, 1);
+        mp.toggleCell(2, 2);
+        mp.toggleCell(2, 3);
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mp.stop();
+            }
+        }, 300, TimeUnit.MILLISECONDS);
+        mp.runContinuous();
+        executor.shutdown();
+
+        boolean[][] c = mp.convertToBoolean(mp.getCells());
+        boolean vertical = mp.getGeneration() % 2 == 1;
+        assertTrue(mp.getGeneration() > 0);
+        assertEquals(vertical, c[1][2]);
+        assertEquals(!vertical, c[2][1]);
+        assertTrue(c[2][2]);
+    }
+
+    /**
+     * The changes the kernel reports for a step must be exactly
+     * the cells that differ between the generations before and
+     * after it.
+     */
+    @Test
+    public void kernelChangesMatchSnapshotDiff() {
+        DenseKernel kernel = new DenseKernel(100);
+        Random random = new Random(10);
+        for (int j = 40; j < 60; j++) {
+            for (int k = 40; k < 60; k++) {
+                kernel.setAlive(j, k, random.nextBoolean());
+            }
+        }
+        ChangeSet fromKernel = new ChangeSet();
+        ChangeSet fromDiff = new ChangeSet();
+        for (int g = 0; g < 20; g++) {
+            GenerationSnapshot before = new GenerationSnapshot(kernel, g);
+            kernel.step();
+            kernel.getChanges(fromKernel);
+            new GenerationSnapshot(kernel, g + 1).diff(before, fromDiff);
+            assertEquals(fromDiff.size(), fromKernel.size());
+            assertEquals(fromDiff.getBirthCount(), fromKernel.getBirthCount());
+            Set<Integer> births = new HashSet<Integer>();
+            for (int i = 0; i < fromKernel.getBirthCount(); i++) {
+                births.add(fromKernel.getBirth(i));
+            }
+            for (int i = 0; i < fromDiff.getBirthCount(); i++) {
+                assertTrue(births.contains(fromDiff.getBirth(i)));
+            }
+        }
+    }
+
+    /**
+     * Metrics keeps totals per generation, and histogram
+     * percentiles are within a factor of two of the truth.
+     */
+    @Test
+    public void metricsRecordsSteps() {
+        Metrics metrics = new Metrics();
+        for (int i = 1; i <= 100; i++) {
+            metrics.recordStep(i * 1000L, 1000L * i, 3, 1);
+        }
+        assertEquals(100, metrics.getGenerations());
+        assertEquals(3.0, metrics.getBirthsPerGeneration(), 1e-9);
+        assertEquals(1.0, metrics.getDeathsPerGeneration(), 1e-9);
+        assertEquals(100000L, metrics.getStepLatency().getMax());
+        long p50 = metrics.getStepLatency().getPercentile(0.5);
+        assertTrue(p50 >= 50000L && p50 < 100000L);
+        assertFalse(metrics.summary().contains("cycle"));
+        metrics.recordCycle(2, 40);
+        assertTrue(metrics.summary().endsWith("cycle of period 2 from generation 40"));
+        metrics.reset();
+        assertEquals(0, metrics.getGenerations());
+        assertEquals(0, metrics.getCyclePeriod());
+    }
+
+    /**
+     * A glider on an 8x8 torus comes back to where it started
+     * after 32 generations, and a blinker after 2.
+     */
+    @Test
+    public void cycleDetectorFindsPeriods() {
+        DenseKernel kernel = new DenseKernel(8);
+        kernel.setAlive(0, 1, true);
+        kernel.setAlive(1, 2, true);
+        kernel.setAlive(2, 0, true);
+        kernel.setAlive(2, 1, true);
+        kernel.setAlive(2, 2, true);
+        assertEquals(32, periodOf(kernel));
+
+        kernel = new DenseKernel(8);
+        kernel.setAlive(3, 2, true);
+        kernel.setAlive(3, 3, true);
+        kernel.setAlive(3, 4, true);
+        assertEquals(2, periodOf(kernel));
+    }
+
+    private int periodOf(DenseKernel kernel) {
+        CycleDetector detector = new CycleDetector(CycleDetector.DEFAULT_HISTORY);
+        ChangeSet changes = new ChangeSet();
+        detector.reset(kernel, 0);
+        for (int g = 1; g <= 100; g++) {
+            kernel.step();
+            kernel.getChanges(changes);
+            if (detector.update(changes, g)) {
+                assertEquals(0, detector.getCycleStart());
+                return detector.getPeriod();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * With CycleAction.STOP, a run on a board that settles down
+     * ends by itself, without anybody calling stop().
+     */
+    @Test
+    public void runContinuousStopsOnStillLife() {
+        final MainPanel mp = new MainPanel(10);
+        mp.toggleCell(0, 0);
+        mp.toggleCell(0, 1);
+        mp.toggleCell(1, 0);
+        mp.setCycleAction(MainPanel.CycleAction.STOP);
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mp.stop();
+            }
+        }, 10, TimeUnit.SECONDS);
+        mp.runContinuous();
+        executor.shutdownNow();
+
+        assertEquals(1, mp.getCyclePeriod());
+        assertEquals(1, mp.getCycleStart());
+        assertEquals(2, mp.getGeneration());
+        boolean[][] c = mp.convertToBoolean(mp.getCells());
+        assertTrue(c[0][0] && c[0][1] && c[1][0] && c[1][1]);
+    }
+
+    /**
+     * Undo and redo can go back and forth over hundreds of
+     * generations, whether they walk the changes one at a
+     * time or start from a keyframe.
+     */
+    @Test
+    public void undoAndRedoManyGenerations() {
+        MainPanel mp = new MainPanel(32);
+        Random random = new Random(14);
+        for (int i = 0; i < 300; i++) {
+            mp.toggleCell(random.nextInt(32), random.nextInt(32));
+        }
+        int clicks = mp.getUndoCount();
+        ArrayList<String> states = new ArrayList<String>();
+        states.add(mp.toString());
+        for (int g = 0; g < 200; g++) {
+            mp.run();
+            states.add(mp.toString());
+        }
+
+        mp.undo(150);
+        assertEquals(50, mp.getGeneration());
+        assertEquals(states.get(50), mp.toString());
+        mp.redo(100);
+        assertEquals(150, mp.getGeneration());
+        assertEquals(states.get(150), mp.toString());
+        mp.undo();
+        assertEquals(states.get(149), mp.toString());
+        mp.undo(1000);
+        assertEquals(0, mp.getUndoCount());
+        assertEquals(0, mp.getGeneration());
+        assertEquals(clicks + 200, mp.getRedoCount());
+
+        mp.redo(clicks + 10);
+        assertEquals(states.get(10), mp.toString());
+        mp.run();
+        assertEquals(0, mp.getRedoCount());
+        assertEquals(states.get(11), mp.toString());
+    }
+
+    /**
+     * Saving a grid by streaming it writes exactly the same
+     * file as saving MainPanel.toString() did.
+     */
+    @Test
+    public void streamingSaveMatchesStringSave() throws Exception {
+        MainPanel mp = new MainPanel(40);
+        Random random = new Random(15);
+        for (int i = 0; i < 400; i++) {
+            mp.toggleCell(random.nextInt(40), random.nextInt(40));
+        }
+        File stringFile = File.createTempFile("string", ".txt");
+        File streamFile = File.createTempFile("stream", ".txt");
+        try {
+            assertTrue(FileAccess.saveFile(stringFile.getPath(), mp.toString()));
+            assertTrue(FileAccess.saveFile(streamFile.getPath(), mp.snapshot()));
+            assertArrayEquals(Files.readAllBytes(stringFile.toPath()),
+                              Files.readAllBytes(streamFile.toPath()));
+        } finally {
+            stringFile.delete();
+            streamFile.delete();
+        }
+    }
+
+    /**
+     * The memory mapped loader fills in a grid exactly like
+     * loading the lines did, and rejects a file whose rows
+     * do not match the size.
+     */
+    @Test
+    public void mappedLoadMatchesLineLoad() throws Exception {
+        MainPanel saved = new MainPanel(20);
+        Random random = new Random(16);
+        for (int i = 0; i < 150; i++) {
+            saved.toggleCell(random.nextInt(20), random.nextInt(20));
+        }
+        File file = File.createTempFile("grid", ".txt");
+        try {
+            assertTrue(FileAccess.saveFile(file.getPath(), saved.snapshot()));
+            assertEquals(20, FileAccess.measureGrid(file.getPath()));
+
+            MainPanel byLines = new MainPanel(20);
+            byLines.load(FileAccess.loadFile(file.getPath()));
+            MainPanel mapped = new MainPanel(20);
+            mapped.load(file.getPath());
+            assertEquals(byLines.toString(), mapped.toString());
+            assertEquals(saved.toString(), mapped.toString());
+
+            MainPanel wrongSize = new MainPanel(21);
+            try {
+                wrongSize.load(file.getPath());
+                fail();
+            } catch (IOException ex) {
+                assertEquals("Row 1 has 20 cells, expected 21", ex.getMessage());
+            }
+            assertEquals(0, wrongSize.getUndoCount());
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * A grid saved as RLE comes back the same, both from the
+     * bit-packed snapshot writer and the cell-by-cell one, and
+     * a standard glider file reads as expected.
+     */
+    @Test
+    public void rleRoundTrip() throws Exception {
+        DenseKernel kernel = new DenseKernel(100);
+        Random random = new Random(17);
+        for (int i = 0; i < 800; i++) {
+            kernel.setAlive(random.nextInt(100), random.nextInt(100), true);
+        }
+        StringWriter fromSnapshot = new StringWriter();
+        RleCodec.write(new GenerationSnapshot(kernel, 0), fromSnapshot);
+        StringWriter fromKernel = new StringWriter();
+        RleCodec.write(kernel, fromKernel);
+        assertEquals(fromKernel.toString(), fromSnapshot.toString());
+
+        DenseKernel loaded = new DenseKernel(100);
+        RleCodec.read(new StringReader(fromSnapshot.toString())).applyTo(loaded);
+        assertEquals(textOf(kernel), textOf(loaded));
+
+        RleCodec.Pattern glider = RleCodec.read(new StringReader(
+            "#N Glider\nx = 3, y = 3, rule = B3/S23\nbob$2bo$3o!\n"));
+        DenseKernel small = new DenseKernel(5);
+        glider.applyTo(small);
+        assertEquals(".X...\n..X..\nXXX..\n.....\n.....\n", textOf(small));
+    }
+
+    /**
+     * A snapshot header with a size that is too big, or that does
+     * not match the length of the body, is refused with an
+     * IOException before anything is made for the cells.
+     */
+    @Test
+    public void snapshotWithImpossibleSizeIsRefused() throws Exception {
+        GenerationSnapshot saved = new GenerationSnapshot(new DenseKernel(100), 0);
+        int[] sizes = { 2000000000, GenerationSnapshot.MAX_SIZE + 1, 65536, 101 };
+        for (String suffix : new String[] { ".snap", ".snapz" }) {
+            File file = File.createTempFile("grid", suffix);
+            try {
+                SnapshotCodec.write(saved, file.getPath(), suffix.equals(".snapz"));
+                byte[] bytes = Files.readAllBytes(file.toPath());
+                for (int size : sizes) {
+                    if (size == 101 && suffix.equals(".snapz")) {
+                        // Too close to the real size to tell
+                        // from the length; the CRC catches it
+                        continue;
+                    }
+                    java.nio.ByteBuffer header = java.nio.ByteBuffer.wrap(bytes)
+                        .order(java.nio.ByteOrder.LITTLE_ENDIAN);
+                    header.putInt(8, size);
+                    header.putInt(12, size);
+                    Files.write(file.toPath(), bytes);
+                    try {
+                        SnapshotCodec.read(file.getPath());
+                        fail("Snapshot claiming " + size + "x" + size + " was loaded");
+                    } catch (IOException ex) {
+                        // Expected
+                    }
+                    try {
+                        FileAccess.measureGrid(file.getPath());
+                        fail("Snapshot claiming " + size + "x" + size + " was measured");
+                    } catch (IOException ex) {
+                        // Expected
+                    }
+                }
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * A binary snapshot, deflated or not, loads back to the
+     * same cells and generation, and a damaged one is refused.
+     */
+    @Test
+    public void snapshotRoundTrip() throws Exception {
+        DenseKernel kernel = new DenseKernel(100);
+        Random random = new Random(18);
+        for (int i = 0; i < 800; i++) {
+            kernel.setAlive(random.nextInt(100), random.nextInt(100), true);
+        }
+        GenerationSnapshot saved = new GenerationSnapshot(kernel, 1234);
+        for (String suffix : new String[] { ".snap", ".snapz" }) {
+            File file = File.createTempFile("grid", suffix);
+            try {
+                SnapshotCodec.write(saved, file.getPath(), suffix.equals(".snapz"));
+                assertEquals(100, FileAccess.measureGrid(file.getPath()));
+                GenerationSnapshot loaded = SnapshotCodec.read(file.getPath());
+                assertEquals(1234, loaded.getGeneration());
+                assertEquals(textOf(kernel), textOf(loaded));
+
+                byte[] bytes = Files.readAllBytes(file.toPath());
+                bytes[bytes.length - 1] ^= 1;
+                Files.write(file.toPath(), bytes);
+                try {
+                    SnapshotCodec.read(file.getPath());
+                    fail("Damaged snapshot was loaded");
+                } catch (IOException ex) {
+                    // Expected
+                }
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Safe save replaces the file in one step and leaves no
+     * temporary file behind, whether it works or not.
+     */
+    @Test
+    public void safeSaveReplacesAtomically() throws Exception {
+        File dir = Files.createTempDirectory("safesave").toFile();
+        try {
+            MainPanel mp = new MainPanel(20);
+            mp.toggleCell(3, 4);
+            File file = new File(dir, "grid.txt");
+            File plain = new File(dir, "plain.txt");
+            assertTrue(FileAccess.saveFile(file.getPath(), "old contents"));
+            FileAccess.safeSave(file.getPath(), mp.snapshot());
+            assertTrue(FileAccess.saveFile(plain.getPath(), mp.snapshot()));
+            assertEquals(new String(Files.readAllBytes(plain.toPath())),
+                         new String(Files.readAllBytes(file.toPath())));
+            assertEquals(2, dir.list().length);
+
+            // A non-empty directory cannot be replaced
+            File blocked = new File(dir, "blocked");
+            assertTrue(new File(blocked, "inside").mkdirs());
+            try {
+                FileAccess.safeSave(blocked.getPath(), mp.snapshot());
+                fail("Replaced a directory");
+            } catch (IOException ex) {
+                assertTrue(ex.getMessage().startsWith("Could not replace"));
+            }
+            assertEquals(3, dir.list().length);
+            new File(blocked, "inside").delete();
+            blocked.delete();
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * File tasks run in the background in order, report
+     * failures through their future, and can be cancelled.
+     */
+    @Test
+    public void fileTasksRunInBackground() throws Exception {
+        File file = File.createTempFile("grid", ".txt");
+        try {
+            MainPanel mp = new MainPanel(30);
+            mp.toggleCell(1, 2);
+            mp.toggleCell(20, 25);
+            FileTask.save(file.getPath(), mp.snapshot()).getFuture().get(10, TimeUnit.SECONDS);
+            GenerationSnapshot read = FileTask.read(file.getPath(), 30).getFuture().get(10, TimeUnit.SECONDS);
+            MainPanel loaded = new MainPanel(30);
+            loaded.load(read);
+            assertEquals(mp.toString(), loaded.toString());
+
+            try {
+                FileTask.read(file.getPath(), 31).getFuture().get(10, TimeUnit.SECONDS);
+                fail("Read a grid of the wrong size");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof IOException);
+            }
+
+            // Hold up the I/O thread so the save is cancelled
+            // before it starts, and check it never happens
+            final CountDownLatch latch = new CountDownLatch(1);
+            FileTask<Void> blocker = FileTask.start(new FileTask.Job<Void>() {
+                    public Void run(Progress progress) throws IOException {
+                        try {
+                            latch.await();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return null;
+                    }
+                });
+            byte[] before = Files.readAllBytes(file.toPath());
+            FileTask<Void> save = FileTask.safeSave(file.getPath(), new MainPanel(30).snapshot());
+            save.cancel();
+            latch.countDown();
+            blocker.getFuture().get(10, TimeUnit.SECONDS);
+            FileTask.start(new FileTask.Job<Void>() {
+                    public Void run(Progress progress) {
+                        return null;
+                    }
+                }).getFuture().get(10, TimeUnit.SECONDS);
+            assertTrue(save.getFuture().isCancelled());
+            assertArrayEquals(before, Files.readAllBytes(file.toPath()));
+
+            // A plain save cancelled part way through also
+            // leaves the old file as it was
+            Progress cancelled = new Progress();
+            cancelled.cancel();
+            try {
+                FileAccess.replace(file.getPath(), new MainPanel(30).snapshot(), cancelled);
+                fail("Cancelled save carried on");
+            } catch (InterruptedIOException ex) {
+                // Expected
+            }
+            assertArrayEquals(before, Files.readAllBytes(file.toPath()));
+            assertEquals(1, file.getParentFile().list(new FilenameFilter() {
+                    public boolean accept(File dir, String name) {
+                        return name.contains(file.getName());
+                    }
+                }).length);
+
+            Progress progress = new Progress();
+            progress.start(4);
+            progress.advance(1);
+            assertEquals(0.25, progress.getFraction(), 1e-9);
+            progress.cancel();
+            try {
+                progress.advance(1);
+                fail("Cancelled work carried on");
+            } catch (InterruptedIOException ex) {
+                // Expected
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * A continuous run leaves the newest few checkpoints
+     * behind, and a new board resumes from the newest one
+     * that is not damaged.
+     */
+    @Test
+    public void checkpointsAndResume() throws Exception {
+        File dir = Files.createTempDirectory("checkpoints").toFile();
+        try {
+            final MainPanel mp = new MainPanel(20);
+            mp.toggleCell(0, 1);
+            mp.toggleCell(1, 2);
+            mp.toggleCell(2, 0);
+            mp.toggleCell(2, 1);
+            mp.toggleCell(2, 2);
+            mp.setCycleAction(MainPanel.CycleAction.KEEP_RUNNING);
+            Checkpointer checkpointer = new Checkpointer(dir, 50, 0, 2);
+            mp.setCheckpointer(checkpointer);
+            final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    mp.stop();
+                }
+            }, 300, TimeUnit.MILLISECONDS);
+            mp.runContinuous();
+            executor.shutdownNow();
+            checkpointer.getPending().getFuture().get(10, TimeUnit.SECONDS);
+
+            List<File> files = checkpointer.list();
+            assertEquals(2, files.size());
+            GenerationSnapshot newest = SnapshotCodec.read(files.get(0).getPath());
+            GenerationSnapshot older = SnapshotCodec.read(files.get(1).getPath());
+            assertTrue(newest.getGeneration() > older.getGeneration());
+
+            MainPanel resumed = new MainPanel(20);
+            resumed.setCheckpointer(checkpointer);
+            assertTrue(resumed.resume());
+            assertEquals(newest.getGeneration(), resumed.getGeneration());
+            assertEquals(textOf(newest), resumed.toString());
+
+            Files.write(files.get(0).toPath(), new byte[] { 'G', 'O', 'L' });
+            assertTrue(resumed.resume());
+            assertEquals(older.getGeneration(), resumed.getGeneration());
+
+            MainPanel other = new MainPanel(21);
+            other.setCheckpointer(checkpointer);
+            assertFalse(other.resume());
+
+            // After an undo the newest checkpoint can have an
+            // earlier generation, and it is still the one kept
+            // and resumed from.  Checkpoints of another size
+            // do not push these out.
+            checkpointer.reset(-1000);
+            assertTrue(checkpointer.offer(new DenseKernel(20), 3));
+            checkpointer.getPending().getFuture().get(10, TimeUnit.SECONDS);
+            checkpointer.reset(-1000);
+            assertTrue(checkpointer.offer(new DenseKernel(21), 5));
+            checkpointer.getPending().getFuture().get(10, TimeUnit.SECONDS);
+            checkpointer.reset(-1000);
+            assertTrue(checkpointer.offer(new DenseKernel(21), 6));
+            checkpointer.getPending().getFuture().get(10, TimeUnit.SECONDS);
+            assertEquals(2, checkpointer.list(20).size());
+            assertEquals(2, checkpointer.list(21).size());
+            assertTrue(resumed.resume());
+            assertEquals(3, resumed.getGeneration());
+            assertTrue(other.resume());
+            assertEquals(6, other.getGeneration());
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * A journal gives back every generation of a recorded
+     * run, edits included, even when its end is cut off.
+     */
+    @Test
+    public void journalSeeksToEveryGeneration() throws Exception {
+        File file = File.createTempFile("run", ".journal");
+        try {
+            MainPanel mp = new MainPanel(24);
+            Random random = new Random(22);
+            for (int i = 0; i < 150; i++) {
+                mp.toggleCell(random.nextInt(24), random.nextInt(24));
+            }
+            mp.startRecording(file.getPath(), 7);
+            List<String> boards = new ArrayList<String>();
+            boards.add(mp.toString());
+            for (int g = 1; g <= 40; g++) {
+                mp.run();
+                if (g % 9 == 0) {
+                    mp.toggleCell(random.nextInt(24), random.nextInt(24));
+                }
+                boards.add(mp.toString());
+            }
+            mp.stopRecording();
+
+            Journal journal = new Journal(file.getPath());
+            try {
+                assertEquals(0, journal.getFirstGeneration());
+                assertEquals(40, journal.getLastGeneration());
+                assertEquals(1 + 40 / 7, journal.getKeyframeCount());
+                for (int g = 0; g <= 40; g++) {
+                    assertEquals("Generation " + g, boards.get(g), textOf(journal.seek(g)));
+                }
+            } finally {
+                journal.close();
+            }
+
+            // Lose the last few bytes, as a crash might
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length - 3));
+            journal = new Journal(file.getPath());
+            try {
+                assertEquals(39, journal.getLastGeneration());
+                assertEquals(boards.get(39), textOf(journal.seek(39)));
+            } finally {
+                journal.close();
+            }
+
+            // Zeroes at the end, as a crash can leave, end the
+            // journal instead of making it unreadable
+            Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length + 4096));
+            journal = new Journal(file.getPath());
+            try {
+                assertEquals(40, journal.getLastGeneration());
+                assertEquals(boards.get(40), textOf(journal.seek(40)));
+            } finally {
+                journal.close();
+            }
+
+            // A step whose change is off the board is reported
+            // as a damaged journal
+            byte[] bad = Arrays.copyOf(bytes, bytes.length + 6);
+            System.arraycopy(new byte[] { 'S', 4, 1, 0, (byte) 0xff, 0x7f }, 0, bad, bytes.length, 6);
+            Files.write(file.toPath(), bad);
+            journal = new Journal(file.getPath());
+            try {
+                assertEquals(41, journal.getLastGeneration());
+                journal.seek(41);
+                fail("Change off the board was applied");
+            } catch (IOException ex) {
+                // Expected
+            } finally {
+                journal.close();
+            }
+
+            mp.startRecording(file.getPath(), 7);
+            mp.run();
+            mp.undo();
+            assertFalse(mp.isRecording());
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Run the panel until the given thread, which changes the
+     * board by hand and then stops the run, is done, recording
+     * a journal.  The journal must end on the board the run
+     * ended on, and undoing every step must go back through
+     * the same boards the journal gives back.
+     */
+    private void checkRecordedRun(MainPanel mp, Thread editor) throws Exception {
+        File file = File.createTempFile("run", ".journal");
+        try {
+            mp.setCycleAction(MainPanel.CycleAction.KEEP_RUNNING);
+            mp.startRecording(file.getPath(), 50);
+            editor.start();
+            mp.runContinuous();
+            editor.join();
+            mp.stopRecording();
+
+            Journal journal = new Journal(file.getPath());
+            try {
+                assertEquals(mp.getGeneration(), journal.getLastGeneration());
+                assertEquals(mp.toString(), textOf(journal.seek(mp.getGeneration())));
+                int steps = 0;
+                while (mp.getUndoCount() > 0) {
+                    long before = mp.getGeneration();
+                    mp.undo();
+                    if (mp.getGeneration() < before) {
+                        assertEquals("Generation " + mp.getGeneration(),
+                                     textOf(journal.seek(mp.getGeneration())), mp.toString());
+                        steps++;
+                    }
+                }
+                assertTrue(steps > 0);
+            } finally {
+                journal.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Clears and clicks from another thread during a recorded
+     * run are applied between generations, so the journal and
+     * the history agree with the board.
+     */
+    @Test
+    public void clearDuringRunIsRecorded() throws Exception {
+        final MainPanel mp = new MainPanel(256, 1, true);
+        final Random random = new Random(9);
+        for (int i = 0; i < 20000; i++) {
+            mp.toggleCell(random.nextInt(256), random.nextInt(256));
+        }
+        checkRecordedRun(mp, new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (mp.getGeneration() == 0) {
+                        Thread.sleep(1);
+                    }
+                    for (int i = 0; i < 200; i++) {
+                        if (i % 4 == 0) {
+                            mp.clear();
+                        }
+                        mp.toggleCell(random.nextInt(256), random.nextInt(256));
+                        Thread.sleep(1);
+                    }
+                } catch (InterruptedException ex) {
+                    // Stop early
+                }
+                mp.stop();
+            }
+        }));
+    }
+
+    /**
+     * Loading a file during a recorded run, as the Load button
+     * does once its background read is done, puts the board in
+     * place between generations, so the journal and the history
+     * agree with the board.
+     */
+    @Test
+    public void loadDuringRunIsRecorded() throws Exception {
+        final File file = File.createTempFile("grid", ".snap");
+        try {
+            MainPanel saved = panelFor(randomGrid(128, 31));
+            assertTrue(FileAccess.saveFile(file.getPath(), saved.snapshot()));
+            final MainPanel mp = panelFor(randomGrid(128, 32));
+            checkRecordedRun(mp, new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (mp.getGeneration() == 0) {
+                            Thread.sleep(1);
+                        }
+                        for (int i = 0; i < 20; i++) {
+                            mp.load(FileTask.read(file.getPath(), 128).getFuture().get());
+                            Thread.sleep(5);
+                        }
+                    } catch (InterruptedException ex) {
+                        // Stop early
+                    } catch (ExecutionException ex) {
+                        throw new RuntimeException(ex);
+                    } finally {
+                        mp.stop();
+                    }
+                }
+            }));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * A headless run from a snapshot carries on from the
+     * generation saved in it, whatever the engine, and saves
+     * and records the generation it reaches.
+     */
+    @Test
+    public void headlessRunKeepsGeneration() throws Exception {
+        File dir = Files.createTempDirectory("headless").toFile();
+        try {
+            String start = new File(dir, "start.txt").getPath();
+            String first = new File(dir, "first.snap").getPath();
+            String second = new File(dir, "second.snap").getPath();
+            String journal = new File(dir, "run.journal").getPath();
+            assertTrue(FileAccess.saveFile(start, fill(new World(64), randomGrid(64, 41))));
+
+            assertTrue(new HeadlessRunner(start, first, 100, 1, HeadlessRunner.KERNEL).run());
+            assertEquals(100, SnapshotCodec.read(first).getGeneration());
+            assertEquals(100, FileAccess.loadGrid(first, new World(64)));
+
+            HeadlessRunner runner = new HeadlessRunner(first, second, 50, 1, HeadlessRunner.KERNEL);
+            runner.setJournal(journal, 16);
+            assertTrue(runner.run());
+            assertEquals(150, SnapshotCodec.read(second).getGeneration());
+            Journal recorded = new Journal(journal);
+            try {
+                assertEquals(100, recorded.getFirstGeneration());
+                assertEquals(150, recorded.getLastGeneration());
+                assertEquals(textOf(SnapshotCodec.read(second)), textOf(recorded.seek(150)));
+            } finally {
+                recorded.close();
+            }
+
+            assertTrue(new HeadlessRunner(second, first, 10, 1, HeadlessRunner.WORLD).run());
+            assertEquals(160, SnapshotCodec.read(first).getGeneration());
+            assertTrue(new HeadlessRunner(start, second, 20, 1, HeadlessRunner.SPARSE).run());
+            assertEquals(20, SnapshotCodec.read(second).getGeneration());
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * Closing the journal from another thread, as the shutdown
+     * hook does, after stopAndWait() keeps every generation
+     * the run stepped.
+     */
+    @Test
+    public void stopAndWaitBeforeClosingJournal() throws Exception {
+        File file = File.createTempFile("run", ".journal");
+        try {
+            final MainPanel mp = panelFor(randomGrid(96, 43));
+            mp.setCycleAction(MainPanel.CycleAction.KEEP_RUNNING);
+            mp.startRecording(file.getPath(), 16);
+            Thread run = new Thread(new Runnable() {
+                public void run() {
+                    mp.runContinuous();
+                }
+            });
+            run.start();
+            while (mp.getGeneration() < 20) {
+                Thread.sleep(1);
+            }
+            mp.stopAndWait();
+            mp.stopRecording();
+            run.join();
+
+            Journal journal = new Journal(file.getPath());
+            try {
+                assertEquals(mp.getGeneration(), journal.getLastGeneration());
+                assertEquals(mp.toString(), textOf(journal.seek(mp.getGeneration())));
+            } finally {
+                journal.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * A mapped off-heap grid is a snapshot file once it is
+     * flushed, and can be opened again to carry on from it.
+     */
+    @Test
+    public void mappedOffHeapWorldIsASnapshot() throws Exception {
+        File file = File.createTempFile("grid", ".snap");
+        try {
+            boolean[][] grid = randomGrid(128, 23);
+            OffHeapWorld world = fill(OffHeapWorld.create(file.getPath(), 128), grid);
+            for (int g = 0; g < 5; g++) {
+                world.step();
+                grid = referenceStep(grid);
+            }
+            world.close();
+            GenerationSnapshot saved = SnapshotCodec.read(file.getPath());
+            assertEquals(5, saved.getGeneration());
+            assertEquals(textOf(fill(new World(128), grid)), textOf(saved));
+
+            world = OffHeapWorld.open(file.getPath());
+            assertEquals(5, world.getGeneration());
+            world.step();
+            world.flush();
+            assertSameGrid(referenceStep(grid), world);
+            assertEquals(6, SnapshotCodec.read(file.getPath()).getGeneration());
+
+            File copy = File.createTempFile("grid", ".snapz");
+            try {
+                assertTrue(FileAccess.saveFile(copy.getPath(), world));
+                world.close();
+                OffHeapWorld loaded = new OffHeapWorld(128);
+                FileAccess.loadGrid(copy.getPath(), loaded);
+                assertEquals(6, loaded.getGeneration());
+                assertSameGrid(referenceStep(grid), loaded);
+            } finally {
+                copy.delete();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Killing a headless off-heap run that carries on from
+     * its own .snap file leaves the file as it was, and a run
+     * that finishes replaces it with the new generation.
+     */
+    @Test
+    public void killedMappedRunLeavesSnapshot() throws Exception {
+        File dir = Files.createTempDirectory("mapped").toFile();
+        try {
+            File file = new File(dir, "big.snap");
+            boolean[][] grid = randomGrid(128, 29);
+            assertTrue(FileAccess.saveFile(file.getPath(), fill(new World(128), grid)));
+            byte[] before = Files.readAllBytes(file.toPath());
+
+            String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+            Process run = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                                             "GameOfLife", "--headless", "--engine", "offheap",
+                                             "--input", file.getPath(), "--output", file.getPath(),
+                                             "--generations", "1000000000000")
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+            try {
+                // Wait for it to map its grid and start stepping
+                long deadline = System.currentTimeMillis() + 10000;
+                while (dir.list().length < 2 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertEquals(2, dir.list().length);
+                Thread.sleep(500);
+            } finally {
+                run.destroyForcibly().waitFor();
+            }
+            assertArrayEquals(before, Files.readAllBytes(file.toPath()));
+            assertEquals(0, SnapshotCodec.read(file.getPath()).getGeneration());
+            for (File f : dir.listFiles()) {
+                if (!f.equals(file)) {
+                    f.delete();
+                }
+            }
+
+            assertTrue(new HeadlessRunner(file.getPath(), file.getPath(), 5, 1, HeadlessRunner.OFFHEAP).run());
+            for (int g = 0; g < 5; g++) {
+                grid = referenceStep(grid);
+            }
+            GenerationSnapshot saved = SnapshotCodec.read(file.getPath());
+            assertEquals(5, saved.getGeneration());
+            assertEquals(textOf(fill(new World(128), grid)), textOf(saved));
+            assertEquals(1, dir.list().length);
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+}
@@ -0,0 +1,13 @@
+/**
+ * A square grid whose cells can be set, such as an engine being
+ * loaded from a file.  Rows and columns are numbered the same way
+ * as MainPanel's cells.
+ */
+
+public interface WritableGrid {
+
+    public int getSize();
+
+    public void setAlive(int row, int col, boolean alive);
+
+}
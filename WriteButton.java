@@ -1,6 +1,7 @@
 import java.awt.*;
 import javax.swing.*;
 import java.awt.event.*;
+import java.util.function.*;
 
 public class WriteButton extends JButton {
 
@@ -16,15 +17,19 @@ public class WriteButton extends JButton {
 
 	public void actionPerformed(ActionEvent e) {
 
-	    String toWrite = _m.toString();
-	    
-	    boolean success = FileAccess.saveFile("backup.txt", toWrite);
-	    
-	    if (!success) {
-		JOptionPane.showMessageDialog((Component) e.getSource(), "COULD NOT WRITE FILE backup.txt", "BROUGHT TO YOU BY BILL LABOON", JOptionPane.WARNING_MESSAGE);
-	    }
+	    final Component source = (Component) e.getSource();
+	    GenerationSnapshot toWrite = _m.snapshot();
 
-	    
+	    // Written in the background, so the board can be
+	    // used (and even keep running) in the meantime
+	    FileTask<Void> task = FileTask.save(FileAccess.DEFAULT_FILE, toWrite);
+	    task.monitor(source, "Writing " + FileAccess.DEFAULT_FILE, new BiConsumer<Void, Throwable>() {
+		    public void accept(Void result, Throwable failure) {
+			if (failure != null) {
+			    JOptionPane.showMessageDialog(source, "COULD NOT WRITE FILE " + FileAccess.DEFAULT_FILE + ": " + failure.getMessage(), "BROUGHT TO YOU BY BILL LABOON", JOptionPane.WARNING_MESSAGE);
+			}
+		    }
+		});
 	}
     }    
     
@@ -0,0 +1,145 @@
+import jdk.incubator.vector.*;
+
+
+/**
+ * Steps DenseKernel's tiles a whole SIMD register of cells at a
+ * time, using the incubating Vector API.
+ *
+ * A register holds one byte per cell, so with AVX2 it covers two
+ * tiles side by side and with AVX-512 four.  The tiles are gone
+ * through a register's width at a time, and each register's worth
+ * of columns is stepped down the 16 rows of the tile row.  The sum
+ * of each cell and its left and right neighbors is worked out once
+ * per row, and the sums of the row above, the row itself and the
+ * row below give the neighbor count, so each row is loaded three
+ * times instead of nine.  The differences from the old generation
+ * are or-ed together on the way down, and at the bottom each
+ * tile's part of the register says whether that tile changed.
+ * Tiles at the right edge that do not fill a whole register are
+ * stepped with the scalar code.
+ *
+ * This class needs the jdk.incubator.vector module both to compile
+ * and to run, so it lives in its own source folder:
+ *
+ *     javac --add-modules jdk.incubator.vector -cp . -d . simd/VectorStepper.java
+ *     java --add-modules jdk.incubator.vector GameOfLife
+ *
+ * DenseKernel loads it by name and falls back to TableStepper if it
+ * is not there.
+ */
+
+public class VectorStepper implements DenseKernel.Stepper {
+
+    // The widest vectors this machine has, but never fewer
+    // lanes than a tile is wide
+    private static final VectorSpecies<Byte> SPECIES =
+        (ByteVector.SPECIES_PREFERRED.length() >= DenseKernel.TILE)
+        ? ByteVector.SPECIES_PREFERRED : ByteVector.SPECIES_128;
+
+    private static final int LANES = SPECIES.length();
+
+    // Tiles side by side in one vector
+    private static final int TILES_PER_VECTOR = LANES / DenseKernel.TILE;
+
+    private static final ByteVector ZERO = ByteVector.zero(SPECIES);
+    private static final ByteVector ONE = ByteVector.broadcast(SPECIES, (byte) 1);
+
+    public void stepTileRow(byte[] cur, byte[] next, int size, int tileRow,
+                            boolean[] awake, boolean[] changed) {
+        int tiles = (size + DenseKernel.TILE - 1) / DenseKernel.TILE;
+        int first = tileRow * tiles;
+
+        // Tiles in whole vectors from the left edge
+        int vectorTiles = (size / LANES) * TILES_PER_VECTOR;
+        for (int k = 0; k < vectorTiles; k += TILES_PER_VECTOR) {
+            boolean any = false;
+            for (int t = 0; t < TILES_PER_VECTOR; t++) {
+                any |= awake[first + k + t];
+            }
+            if (!any) {
+                continue;
+            }
+            // Step the tiles in this vector together, asleep
+            // or not
+            long diff = stepColumns(cur, next, size, tileRow, k * DenseKernel.TILE);
+            for (int t = 0; t < TILES_PER_VECTOR; t++) {
+                changed[first + k + t] = ((diff >>> t) & 1) != 0;
+            }
+        }
+
+        // The few tiles at the right edge that do not fill a
+        // vector are done a cell at a time
+        for (int k = vectorTiles; k < tiles; k++) {
+            if (awake[first + k]) {
+                changed[first + k] = DenseKernel.ScalarStepper.stepTile(cur, next, size, tileRow, k);
+            }
+        }
+    }
+
+    /**
+     * Step a vector's worth of columns from col down the
+     * rows of a tile row, and return which of its tiles
+     * changed, as a bit per tile.
+     */
+
+    private static long stepColumns(byte[] cur, byte[] next, int size, int tileRow, int col) {
+        int stride = size + 2;
+        int rowStart = tileRow * DenseKernel.TILE;
+        int rowEnd = Math.min(rowStart + DenseKernel.TILE, size);
+
+        // Index of the first column in the row above the tile row
+        int i = rowStart * stride + col + 1;
+        ByteVector above = rowSum(cur, i);
+        ByteVector middle = rowSum(cur, i + stride);
+
+        // Made here rather than taken from ZERO, which the JIT
+        // cannot keep in a register once it is carried around
+        // the loop
+        ByteVector diff = ByteVector.zero(SPECIES);
+        for (int j = rowStart; j < rowEnd; j++) {
+            i += stride;
+            ByteVector below = rowSum(cur, i + stride);
+            ByteVector self = ByteVector.fromArray(SPECIES, cur, i);
+            ByteVector numNeighbors = above.add(middle).add(below).sub(self);
+
+            // Alive with 3 neighbors, or with 2 if alive now
+            // (see DenseKernel.ScalarStepper)
+            ByteVector b = ZERO.blend(ONE, numNeighbors.or(self).eq((byte) 3));
+            b.intoArray(next, i);
+
+            // Not 0 where the cell changed
+            diff = diff.or(b.sub(self));
+
+            above = middle;
+            middle = below;
+        }
+
+        // Each tile is two longs of the vector.  (Comparing
+        // and turning the mask into a long would be shorter,
+        // but on JDK 17 that is not compiled to vector code.)
+        LongVector longs = diff.reinterpretAsLongs();
+        long changed = 0;
+        for (int t = 0; t < TILES_PER_VECTOR; t++) {
+            if ((longs.lane(2 * t) | longs.lane(2 * t + 1)) != 0) {
+                changed |= 1L << t;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Each cell plus its left and right neighbors, for the
+     * columns starting at index i.
+     */
+
+    private static ByteVector rowSum(byte[] cells, int i) {
+        return ByteVector.fromArray(SPECIES, cells, i - 1)
+            .add(ByteVector.fromArray(SPECIES, cells, i))
+            .add(ByteVector.fromArray(SPECIES, cells, i + 1));
+    }
+
+    public String getName() {
+        return DenseKernel.VECTOR;
+    }
+
+}